@@ -0,0 +1,422 @@
+//
+//  Benchmark.java
+//  ChessApp
+//
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Micro benchmarks for the board and search hot paths.
+ *
+ * Times gen(), makeMove()/takeBack(), attack(), inCheck(), getScore() and a fixed depth think() over a small corpus
+ * of opening, middlegame and endgame positions, and reports the time and the bytes allocated per operation so a
+ * change can be compared against a baseline run on the same machine.
+ *
+ * Each benchmark is warmed up first so the JIT has compiled it, then measured over several timed iterations.
+ * Allocation comes from the JVM's per-thread allocation counter, when the JVM has one.
+ *
+ * Usage:
+ *
+ *   java Project2_Benchmark_Thompson [-iterations n] [-time ms] [-depth d] [-search s] [name ...]
+ *   java Project2_Benchmark_Thompson -scaling [-iterations n] [-depth d] [-search s]
+ *   java Project2_Benchmark_Thompson -stop ms [-iterations n] [-search s]
+ *
+ * where name is any of gen, make, attack, incheck, eval, search (all of them if none are given).
+ *
+ * -scaling reports the search's time to depth with 1, 2, 4, 8 and 16 threads instead: Minimax split at the root
+ * (-search 1), Lazy SMP for Alpha Beta (2, the default) and PVS (3), or Young Brothers Wait (4).
+ *
+ * -stop starts a search on each position, calls stop() after the given time and reports how long think() took to
+ * return (the stop latency).
+ *
+ * Minimax, Alpha Beta and Young Brothers Wait always search for dark at the root, since the computer only plays
+ * dark, so for them the search benchmarks use each position with the colours swapped when white is to move (see
+ * searchFen()).  PVS is negamax and searches the positions as they are.
+ *
+ * @version 2011.0423
+ * @since 1.6
+ *
+ */
+final class Project2_Benchmark_Thompson {
+
+	/**
+	 * Positions the benchmarks are run over: name, FEN.
+	 */
+	final static String CORPUS[][] = {
+		{ "opening", "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1" },
+		{ "opening", "r1bqkbnr/pppp1ppp/2n5/4p3/4P3/5N2/PPPP1PPP/RNBQKB1R w KQkq - 2 3" },
+		{ "middlegame", "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1" },
+		{ "middlegame", "r1bq1rk1/pp2bppp/2n1pn2/2pp4/3P4/2PBPN2/PP1N1PPP/R2QK2R w KQ - 0 8" },
+		{ "endgame", "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1" },
+		{ "endgame", "8/5pk1/6p1/8/3R4/6P1/5PK1/3r4 b - - 0 40" }
+	};
+
+	/**
+	 * One benchmark.  run() does some number of operations on the board and returns how many it did.
+	 * It is called batch times between looks at the clock.
+	 */
+	private static abstract class Bench {
+		final String name;
+		final int batch;
+
+		Bench(String name, int batch) {
+			this.name = name;
+			this.batch = batch;
+		}
+
+		/**
+		 * Called once per position before timing starts.
+		 */
+		void setUp(Project2_Board_Thompson b) {
+		}
+
+		abstract long run(Project2_Board_Thompson b);
+	}
+
+	/**
+	 * The position with the colours swapped: the board turned upside down, white and black exchanged and the other
+	 * side to move.  Searching it is the same work as searching the original for the other side.
+	 */
+	static String mirror(String fen) {
+		String f[] = fen.trim().split("\\s+");
+		String ranks[] = f[0].split("/");
+		StringBuilder sb = new StringBuilder();
+		for (int i = ranks.length - 1; i >= 0; --i) {
+			sb.append(swapCase(ranks[i]));
+			if (i > 0)
+				sb.append('/');
+		}
+		sb.append(f[1].equals("w") ? " b " : " w ");
+		if (f[2].equals("-"))
+			sb.append('-');
+		else {
+			String castle = swapCase(f[2]);
+			//Keep the usual KQkq order.
+			for (char c : "KQkq".toCharArray())
+				if (castle.indexOf(c) >= 0)
+					sb.append(c);
+		}
+		sb.append(' ');
+		sb.append(f[3].equals("-") ? "-" : f[3].charAt(0) + "" + (char) ('1' + '8' - f[3].charAt(1)));
+		for (int i = 4; i < f.length; ++i)
+			sb.append(' ').append(f[i]);
+		return sb.toString();
+	}
+
+	private static String swapCase(String s) {
+		StringBuilder sb = new StringBuilder(s.length());
+		for (char c : s.toCharArray())
+			sb.append(Character.isUpperCase(c) ? Character.toLowerCase(c) : Character.toUpperCase(c));
+		return sb.toString();
+	}
+
+	/**
+	 * The position to search with the selected search, mirrored if white is to move and the search only plays dark.
+	 */
+	private String searchFen(String fen) {
+		boolean whiteToMove = fen.trim().split("\\s+")[1].equals("w");
+		return (whiteToMove && searchAlgorithm != 3) ? mirror(fen) : fen;
+	}
+
+	/**
+	 * Results are added in here so the JIT can't throw the work away.
+	 */
+	static volatile long sink;
+
+	private int iterations = 5;
+	private long iterationTime = 200;
+	private int searchDepth = 3;
+	private int searchAlgorithm = 2;
+
+	/**
+	 * Thread counts for the scaling report.
+	 */
+	final static int SCALING_THREADS[] = { 1, 2, 4, 8, 16 };
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final PrintStream out = System.out;
+
+	/**
+	 * Bytes allocated by this thread so far, or -1 if the JVM can't tell us.
+	 */
+	private long allocated() {
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+			if (t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled())
+				return t.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private Bench[] benches() {
+		return new Bench[] {
+			new Bench("gen", 16) {
+				long run(Project2_Board_Thompson b) {
+					b.gen(0);
+					sink += b.firstMove[1];
+					return 1;
+				}
+			},
+			new Bench("make", 16) {
+				int moves[];
+
+				void setUp(Project2_Board_Thompson b) {
+					b.gen(0);
+					moves = new int[b.firstMove[1] - b.firstMove[0]];
+					System.arraycopy(b.moveStack, b.firstMove[0], moves, 0, moves.length);
+				}
+
+				long run(Project2_Board_Thompson b) {
+					for (int i = 0; i < moves.length; ++i) {
+						b.makeLegalMove(moves[i]);
+						b.takeBack();
+					}
+					return moves.length;
+				}
+			},
+			new Bench("attack", 16) {
+				long run(Project2_Board_Thompson b) {
+					int n = 0;
+					for (int sq = 0; sq < 64; ++sq)
+						if (b.attack(sq, b.xside))
+							++n;
+					sink += n;
+					return 64;
+				}
+			},
+			new Bench("incheck", 16) {
+				long run(Project2_Board_Thompson b) {
+					if (b.inCheck(b.side))
+						++sink;
+					if (b.inCheck(b.xside))
+						++sink;
+					return 2;
+				}
+			},
+			new Bench("eval", 16) {
+				long run(Project2_Board_Thompson b) {
+					sink += b.getScore();
+					return 1;
+				}
+			},
+			//A new searcher every time so each search starts with an empty transposition table,
+			//the bytes allocated include the table.
+			new Bench("search", 1) {
+				long run(Project2_Board_Thompson b) {
+					b.SEARCH = searchAlgorithm;
+					Project2_Search_Thompson s = new Project2_Search_Thompson(b);
+					s.think(0, Integer.MAX_VALUE, searchDepth);
+					sink += s.getBest().toInt();
+					s.shutdown();
+					return 1;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Runs a benchmark for about the given time and returns {operations, nanoseconds, bytes}.
+	 */
+	private long[] measure(Bench bench, Project2_Board_Thompson b, long millis) {
+		long ops = 0;
+		long bytes = allocated();
+		long start = System.nanoTime();
+		long end = start + millis * 1000000L;
+		long now;
+		do {
+			for (int i = 0; i < bench.batch; ++i)
+				ops += bench.run(b);
+			now = System.nanoTime();
+		} while (now < end);
+		long after = allocated();
+		return new long[] { ops, now - start, (bytes < 0 || after < 0) ? -1 : after - bytes };
+	}
+
+	/**
+	 * Warms up and measures one benchmark over the whole corpus, then prints one line per position.
+	 */
+	private void run(Bench bench) {
+		for (int p = 0; p < CORPUS.length; ++p) {
+			Project2_Board_Thompson b = new Project2_Board_Thompson();
+			b.setFen(bench.name.equals("search") ? searchFen(CORPUS[p][1]) : CORPUS[p][1]);
+			bench.setUp(b);
+			//The search prints its progress, which we don't want in the results.
+			if (bench.name.equals("search"))
+				System.setOut(new PrintStream(new OutputStream() {
+					public void write(int c) {
+					}
+				}));
+			long best = Long.MAX_VALUE;
+			long ops = 0;
+			long time = 0;
+			long bytes = 0;
+			try {
+				measure(bench, b, iterationTime * 2);
+				for (int i = 0; i < iterations; ++i) {
+					long r[] = measure(bench, b, iterationTime);
+					ops += r[0];
+					time += r[1];
+					bytes = (bytes < 0 || r[2] < 0) ? -1 : bytes + r[2];
+					best = Math.min(best, r[1] / r[0]);
+				}
+			}
+			finally {
+				System.setOut(out);
+			}
+			out.println(String.format("%-8s %-11s %12.1f ns/op  (best %d)  %s",
+					bench.name, CORPUS[p][0], (double) time / ops, best,
+					bytes < 0 ? "alloc n/a" : String.format("%.1f B/op", (double) bytes / ops)));
+		}
+	}
+
+	/**
+	 * Average time for think() to finish the search depth on a position with the given number of threads.
+	 * Every run starts with a new searcher so the transposition table starts empty.
+	 */
+	private double timeToDepth(String fen, int threadCount) {
+		long total = 0;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int c) {
+			}
+		}));
+		try {
+			for (int i = 0; i < iterations; ++i) {
+				Project2_Board_Thompson b = new Project2_Board_Thompson();
+				b.setFen(searchFen(fen));
+				b.SEARCH = searchAlgorithm;
+				Project2_Search_Thompson s = new Project2_Search_Thompson(b);
+				s.setThreads(threadCount);
+				long start = System.nanoTime();
+				s.think(0, Integer.MAX_VALUE, searchDepth);
+				total += System.nanoTime() - start;
+				sink += s.getBest().toInt();
+				s.shutdown();
+			}
+		}
+		finally {
+			System.setOut(out);
+		}
+		return total / 1e6 / iterations;
+	}
+
+	/**
+	 * Prints the time to depth for each thread count and position, and the speedup over one thread.
+	 * The search is warmed up on the first position before anything is timed.
+	 */
+	private void scaling() {
+		out.println((searchAlgorithm == 4 ? "YBW" : searchAlgorithm == 1 ? "Minimax" : "Lazy SMP") + " time to depth " + searchDepth + ", " + Runtime.getRuntime().availableProcessors()
+				+ " processors available");
+		timeToDepth(CORPUS[0][1], 1);
+		StringBuilder header = new StringBuilder(String.format("%-11s", "threads"));
+		for (int n : SCALING_THREADS)
+			header.append(String.format(" %16d", n));
+		out.println(header);
+		for (int p = 0; p < CORPUS.length; ++p) {
+			StringBuilder line = new StringBuilder(String.format("%-11s", CORPUS[p][0]));
+			double base = 0;
+			for (int n : SCALING_THREADS) {
+				double ms = timeToDepth(CORPUS[p][1], n);
+				if (n == 1)
+					base = ms;
+				line.append(String.format(" %8.1f ms %4.2fx", ms, base / ms));
+			}
+			out.println(line);
+		}
+	}
+
+	/**
+	 * Prints the average and worst time from stop() to think() returning on each position.
+	 */
+	private void stopLatency(final long millis) {
+		out.println("Stop latency after " + millis + " ms");
+		//The first position is run twice, the first time just warms up the JIT.
+		for (int p = -1; p < CORPUS.length; ++p) {
+			long total = 0;
+			long worst = 0;
+			System.setOut(new PrintStream(new OutputStream() {
+				public void write(int c) {
+				}
+			}));
+			try {
+				for (int i = 0; i < iterations; ++i) {
+					Project2_Board_Thompson b = new Project2_Board_Thompson();
+					b.setFen(searchFen(CORPUS[Math.max(p, 0)][1]));
+					b.SEARCH = searchAlgorithm;
+					final Project2_Search_Thompson s = new Project2_Search_Thompson(b);
+					Thread stopper = new Thread() {
+						public void run() {
+							try {
+								Thread.sleep(millis);
+							}
+							catch (InterruptedException e) {
+							}
+							s.stop();
+						}
+					};
+					stopper.start();
+					s.think(0, Integer.MAX_VALUE, Project2_Search_Thompson.MAX_PLY - 2);
+					s.shutdown();
+					try {
+						stopper.join();
+					}
+					catch (InterruptedException e) {
+					}
+					total += s.getStopLatency();
+					worst = Math.max(worst, s.getStopLatency());
+				}
+			}
+			finally {
+				System.setOut(out);
+			}
+			if (p >= 0)
+				out.println(String.format("%-11s %10.1f us  (worst %.1f us)", CORPUS[p][0], total / 1e3 / iterations, worst / 1e3));
+		}
+	}
+
+	public static void main(String args[]) {
+		Project2_Benchmark_Thompson bm = new Project2_Benchmark_Thompson();
+		java.util.List<String> names = new java.util.ArrayList<String>();
+		boolean scaling = false;
+		long stopAfter = 0;
+		try {
+			for (int i = 0; i < args.length; ++i) {
+				if (args[i].equals("-iterations"))
+					bm.iterations = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-time"))
+					bm.iterationTime = Long.parseLong(args[++i]);
+				else if (args[i].equals("-depth"))
+					bm.searchDepth = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-search"))
+					bm.searchAlgorithm = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-scaling"))
+					scaling = true;
+				else if (args[i].equals("-stop"))
+					stopAfter = Long.parseLong(args[++i]);
+				else
+					names.add(args[i]);
+			}
+		}
+		catch (RuntimeException e) {
+			System.out.println("Usage: java Project2_Benchmark_Thompson [-iterations n] [-time ms] [-depth d] [-search s] [name ...]");
+			System.out.println("       java Project2_Benchmark_Thompson -scaling [-iterations n] [-depth d] [-search s]");
+			System.out.println("       java Project2_Benchmark_Thompson -stop ms [-iterations n] [-search s]");
+			return;
+		}
+		if (scaling) {
+			bm.scaling();
+			return;
+		}
+		if (stopAfter > 0) {
+			bm.stopLatency(stopAfter);
+			return;
+		}
+		System.out.println(System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+				+ ", " + bm.iterations + " iterations of " + bm.iterationTime + " ms, search depth " + bm.searchDepth);
+		for (Bench bench : bm.benches())
+			if (names.isEmpty() || names.contains(bench.name))
+				bm.run(bench);
+	}
+}
@@ -0,0 +1,294 @@
+//
+//  Bitboard.java
+//  ChessApp
+//
+
+/**
+ * Bitboard attack tables.
+ *
+ * Each square of the board is one bit of a long, using the same numbering as the board arrays
+ * (bit 0 is a8, bit 63 is h1).  Knight, king and pawn attacks are simple per-square lookups.
+ * Rook and bishop attacks use "magic" bitboards: the relevant blockers on a square are multiplied by
+ * a magic number and shifted down to give an index into a shared table of precomputed attack sets.
+ *
+ * The magic numbers are found once when the class loads using a fixed seed, so the tables are the same on every run.
+ *
+ * @version 2011.0423
+ * @since 1.6
+ *
+ */
+final class Project2_Bitboard_Thompson {
+
+	/**
+	 * Knight and king attacks from each square.
+	 */
+	static final long knightAttacks[] = new long[64];
+	static final long kingAttacks[] = new long[64];
+
+	/**
+	 * Squares attacked by a pawn of the given side standing on the given square.
+	 */
+	static final long pawnAttacks[][] = new long[2][64];
+
+	/**
+	 * Magic lookup data for rooks and bishops.
+	 */
+	static final long rookMask[] = new long[64];
+	static final long rookMagic[] = new long[64];
+	static final int rookShift[] = new int[64];
+	static final int rookOffset[] = new int[64];
+	static final long bishopMask[] = new long[64];
+	static final long bishopMagic[] = new long[64];
+	static final int bishopShift[] = new int[64];
+	static final int bishopOffset[] = new int[64];
+
+	/**
+	 * Shared attack table, every square's slice starts at its rookOffset/bishopOffset.
+	 */
+	static final long slideAttacks[];
+
+	/**
+	 * between[a][b] is the squares strictly between a and b and line[a][b] the whole row, column or diagonal
+	 * through them, both 0 if a and b don't share one.  Used for pins and for blocking checks.
+	 */
+	static final long between[][] = new long[64][64];
+	static final long line[][] = new long[64][64];
+
+	/**
+	 * Rook and bishop attacks on an empty board.  A slider that isn't on one of these rays can't attack the
+	 * square whatever is in the way, which is cheaper to find out than the magic lookup.
+	 */
+	static final long rookRays[] = new long[64];
+	static final long bishopRays[] = new long[64];
+
+	/**
+	 * Row/column steps for the sliding pieces and the leapers.
+	 */
+	private static final int rookDir[][] = { { -1, 0 }, { 1, 0 }, { 0, -1 }, { 0, 1 } };
+	private static final int bishopDir[][] = { { -1, -1 }, { -1, 1 }, { 1, -1 }, { 1, 1 } };
+	private static final int knightDir[][] = { { -2, -1 }, { -2, 1 }, { -1, -2 }, { -1, 2 }, { 1, -2 }, { 1, 2 }, { 2, -1 }, { 2, 1 } };
+	private static final int kingDir[][] = { { -1, -1 }, { -1, 0 }, { -1, 1 }, { 0, -1 }, { 0, 1 }, { 1, -1 }, { 1, 0 }, { 1, 1 } };
+
+	/**
+	 * State of the random number generator used to search for magics.
+	 */
+	private static long seed = 0x5DEECE66DL;
+
+	static {
+		for (int sq = 0; sq < 64; ++sq) {
+			knightAttacks[sq] = leaperAttacks(sq, knightDir);
+			kingAttacks[sq] = leaperAttacks(sq, kingDir);
+			int r = sq >> 3, c = sq & 7;
+			//Light pawns move towards row 0, dark pawns towards row 7.
+			if (r > 0) {
+				if (c > 0) pawnAttacks[0][sq] |= 1L << (sq - 9);
+				if (c < 7) pawnAttacks[0][sq] |= 1L << (sq - 7);
+			}
+			if (r < 7) {
+				if (c > 0) pawnAttacks[1][sq] |= 1L << (sq + 7);
+				if (c < 7) pawnAttacks[1][sq] |= 1L << (sq + 9);
+			}
+			rookMask[sq] = relevantMask(sq, rookDir);
+			bishopMask[sq] = relevantMask(sq, bishopDir);
+			lines(sq, rookDir);
+			lines(sq, bishopDir);
+			rookRays[sq] = rayAttacks(sq, 0, rookDir);
+			bishopRays[sq] = rayAttacks(sq, 0, bishopDir);
+		}
+
+		int size = 0;
+		for (int sq = 0; sq < 64; ++sq) {
+			rookOffset[sq] = size;
+			size += 1 << Long.bitCount(rookMask[sq]);
+		}
+		for (int sq = 0; sq < 64; ++sq) {
+			bishopOffset[sq] = size;
+			size += 1 << Long.bitCount(bishopMask[sq]);
+		}
+		slideAttacks = new long[size];
+		for (int sq = 0; sq < 64; ++sq) {
+			rookShift[sq] = 64 - Long.bitCount(rookMask[sq]);
+			rookMagic[sq] = findMagic(sq, rookMask[sq], rookShift[sq], rookOffset[sq], rookDir);
+			bishopShift[sq] = 64 - Long.bitCount(bishopMask[sq]);
+			bishopMagic[sq] = findMagic(sq, bishopMask[sq], bishopShift[sq], bishopOffset[sq], bishopDir);
+		}
+	}
+
+	private Project2_Bitboard_Thompson() {
+	}
+
+	/**
+	 * Rook attacks from sq given the occupied squares.
+	 *
+	 * @param sq - Square the rook is on.
+	 * @param occ - Occupied squares.
+	 * @return Attacked squares, including the first blocker in each direction.
+	 */
+	static long rookAttacks(int sq, long occ) {
+		return slideAttacks[rookOffset[sq] + (int) (((occ & rookMask[sq]) * rookMagic[sq]) >>> rookShift[sq])];
+	}
+
+	/**
+	 * Bishop attacks from sq given the occupied squares.
+	 *
+	 * @param sq - Square the bishop is on.
+	 * @param occ - Occupied squares.
+	 * @return Attacked squares, including the first blocker in each direction.
+	 */
+	static long bishopAttacks(int sq, long occ) {
+		return slideAttacks[bishopOffset[sq] + (int) (((occ & bishopMask[sq]) * bishopMagic[sq]) >>> bishopShift[sq])];
+	}
+
+	/**
+	 * Queen attacks are just rook and bishop attacks combined.
+	 */
+	static long queenAttacks(int sq, long occ) {
+		return rookAttacks(sq, occ) | bishopAttacks(sq, occ);
+	}
+
+	/**
+	 * Attacks for any non-pawn piece.
+	 *
+	 * @param p - Piece type (KNIGHT - KING).
+	 * @param sq - Square the piece is on.
+	 * @param occ - Occupied squares.
+	 * @return Attacked squares.
+	 */
+	static long attacks(int p, int sq, long occ) {
+		switch (p) {
+			case Project2_Board_Thompson.KNIGHT:
+				return knightAttacks[sq];
+			case Project2_Board_Thompson.BISHOP:
+				return bishopAttacks(sq, occ);
+			case Project2_Board_Thompson.ROOK:
+				return rookAttacks(sq, occ);
+			case Project2_Board_Thompson.QUEEN:
+				return queenAttacks(sq, occ);
+			case Project2_Board_Thompson.KING:
+				return kingAttacks[sq];
+			default:
+				return 0;
+		}
+	}
+
+	private static long leaperAttacks(int sq, int dir[][]) {
+		long b = 0;
+		for (int i = 0; i < dir.length; ++i) {
+			int r = (sq >> 3) + dir[i][0];
+			int c = (sq & 7) + dir[i][1];
+			if (r >= 0 && r < 8 && c >= 0 && c < 8)
+				b |= 1L << ((r << 3) + c);
+		}
+		return b;
+	}
+
+	/**
+	 * Walks the rays from sq, stopping at (and including) the first occupied square.
+	 * Only used while building the tables.
+	 */
+	private static long rayAttacks(int sq, long occ, int dir[][]) {
+		long b = 0;
+		for (int i = 0; i < dir.length; ++i) {
+			int r = (sq >> 3) + dir[i][0];
+			int c = (sq & 7) + dir[i][1];
+			while (r >= 0 && r < 8 && c >= 0 && c < 8) {
+				long bit = 1L << ((r << 3) + c);
+				b |= bit;
+				if ((occ & bit) != 0)
+					break;
+				r += dir[i][0];
+				c += dir[i][1];
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Fills in between[sq] and line[sq] for the squares along each ray from sq.  A line is the ray both ways
+	 * plus sq itself.
+	 */
+	private static void lines(int sq, int dir[][]) {
+		for (int i = 0; i < dir.length; ++i) {
+			int back[][] = { { -dir[i][0], -dir[i][1] } };
+			long full = (1L << sq) | rayAttacks(sq, 0, new int[][] { dir[i] }) | rayAttacks(sq, 0, back);
+			long ray = 0;
+			int r = (sq >> 3) + dir[i][0];
+			int c = (sq & 7) + dir[i][1];
+			while (r >= 0 && r < 8 && c >= 0 && c < 8) {
+				int t = (r << 3) + c;
+				between[sq][t] = ray;
+				line[sq][t] = full;
+				ray |= 1L << t;
+				r += dir[i][0];
+				c += dir[i][1];
+			}
+		}
+	}
+
+	/**
+	 * Squares whose occupancy matters for a slider on sq.  The last square of each ray is left
+	 * out since a blocker there makes no difference.
+	 */
+	private static long relevantMask(int sq, int dir[][]) {
+		long b = 0;
+		for (int i = 0; i < dir.length; ++i) {
+			int r = (sq >> 3) + dir[i][0];
+			int c = (sq & 7) + dir[i][1];
+			while (r + dir[i][0] >= 0 && r + dir[i][0] < 8 && c + dir[i][1] >= 0 && c + dir[i][1] < 8) {
+				b |= 1L << ((r << 3) + c);
+				r += dir[i][0];
+				c += dir[i][1];
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Finds a magic number for sq by trial and error and fills in its slice of slideAttacks.
+	 * Sparse random numbers make good candidates so we AND three together.
+	 */
+	private static long findMagic(int sq, long mask, int shift, int offset, int dir[][]) {
+		int n = 1 << Long.bitCount(mask);
+		long occ[] = new long[n];
+		long ref[] = new long[n];
+		int epoch[] = new int[n];
+
+		//Enumerate every subset of the mask (Carry-Rippler trick).
+		long sub = 0;
+		int count = 0;
+		do {
+			occ[count] = sub;
+			ref[count] = rayAttacks(sq, sub, dir);
+			++count;
+			sub = (sub - mask) & mask;
+		} while (sub != 0);
+
+		for (int attempt = 1;; ++attempt) {
+			long magic = nextRandom() & nextRandom() & nextRandom();
+			if (Long.bitCount((mask * magic) & 0xFF00000000000000L) < 6)
+				continue;
+			boolean ok = true;
+			for (int i = 0; i < count && ok; ++i) {
+				int idx = (int) ((occ[i] * magic) >>> shift);
+				if (epoch[idx] != attempt) {
+					epoch[idx] = attempt;
+					slideAttacks[offset + idx] = ref[i];
+				}
+				else if (slideAttacks[offset + idx] != ref[i])
+					ok = false;
+			}
+			if (ok)
+				return magic;
+		}
+	}
+
+	/**
+	 * xorshift64* generator, fast enough that finding all the magics takes a few milliseconds.
+	 */
+	private static long nextRandom() {
+		seed ^= seed >>> 12;
+		seed ^= seed << 25;
+		seed ^= seed >>> 27;
+		return seed * 2685821657736338717L;
+	}
+}
@@ -54,9 +54,13 @@ import java.util.*;
 @modified Kurtis Thompson
 
 1.  Added setMaxDepth to allow the user to select the maximum search depth.
-2.  Added SEARCH_ALGORITHM variable to allow us to set the algorithm we are going to use (0 - Random, 1 Minimax, 2 Alphabeta)
+2.  Added SEARCH_ALGORITHM variable to allow us to set the algorithm we are going to use (0 - Random, 1 Minimax, 2 Alphabeta, 3 PVS, 4 YBW)
 3.  Added RANDOMIZATION_ALGORITHM variable to allow users to set the randomization algorithm we are going to use.
 4.  Modified computermove to allow the use of random-moves instead of automatically spawning the thread.
+5.  Added moveNow() to stop the search early.
+6.  Added setGameClock() to play on a game clock with an increment instead of a fixed time per move.
+7.  Added setPonder() to let the computer think on the human's time about the reply it expects.
+8.  Added setThreads() to search on more than one processor, all of them by default.
 
 @version 2011.0402.
 @since 1.6
@@ -100,6 +104,21 @@ final class Project2_BoardView_Thompson extends JPanel {
      * Maximum search time default
      */
     private int maxTime = 10000;
+    /**
+     * Game clock for the computer in milliseconds, 0 to use maxTime for every move instead.
+     */
+    private long clockTime = 0;
+    private long clockIncrement = 0;
+    private long computerClock = 0;
+    /**
+     * Should the computer ponder while the human thinks?
+     */
+    private volatile boolean ponder = false;
+    /**
+     * Threads the searcher uses, one per processor unless the user picks another number.  Set on the GUI thread,
+     * handed to the searcher by the Thinker when no search is running.
+     */
+    private volatile int threads = Runtime.getRuntime().availableProcessors();
     /**
      * Maximum search depth for our iterative deepening.
      */
@@ -107,7 +126,11 @@ final class Project2_BoardView_Thompson extends JPanel {
     /**
      * boolean semaphore for someone making a move.
      */
-    private boolean moving = false;
+    private volatile boolean moving = false;
+    /**
+     * The Thinker thread of the computer's last move, so a new game can wait for it.
+     */
+    private volatile Thread thinker;
     /**
      * Default setting for search algorithm (Alpha Beta)
      */
@@ -127,6 +150,7 @@ final class Project2_BoardView_Thompson extends JPanel {
         app = applet;
         board = b;
         searcher = new Project2_Search_Thompson(b);
+        searcher.setThreads(threads);
 
         JPanel boardPanel = new JPanel();
         boardPanel.setLayout(new GridLayout(10, 10));
@@ -174,23 +198,84 @@ final class Project2_BoardView_Thompson extends JPanel {
     }
     
     /**
-     * Set the board and create our searcher to find moves.
+     * Set the board for a new game.  The searcher is kept, newGame() makes it forget the last game.
      * @param b - current board.
      */
     public void setBoard(Project2_Board_Thompson b) {
+        //If the computer is thinking, have it move now and wait, it still plays on the old board.
+        //isResult() can start a new game from the Thinker itself, which has no search running.
+        Thread t = thinker;
+        if (t != null && t != Thread.currentThread()) {
+            searcher.stop();
+            try {
+                t.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         board = b;
-        searcher = new Project2_Search_Thompson(b);
+        searcher.newGame(b);
+        computerClock = clockTime;
         reset();
     }
+    /**
+     * Tells the computer to stop thinking and play the best move it has found so far.
+     */
+    public void moveNow() {
+        if (moving)
+            searcher.stop();
+    }
+    
     /**
      * Set the maximum time allowed for a  move.
      * @param millis - maximum time allowed for a move in milliseconds.
      */
     public void setMaxTime(int millis) {
         maxTime = millis;
+        clockTime = 0;
         //maxDepth = 32;
     }
     
+    /**
+     * Play on a game clock, the computer's clock starts again at the total.
+     * @param millis - total time for the game in milliseconds.
+     * @param increment - time added to the clock after each move in milliseconds.
+     */
+    public void setGameClock(long millis, long increment) {
+        clockTime = millis;
+        clockIncrement = increment;
+        computerClock = millis;
+    }
+    
+    /**
+     * Turns pondering on or off.  It starts after the computer's next move.
+     * @param on - true to search the expected reply while the human thinks.
+     */
+    public void setPonder(boolean on) {
+        ponder = on;
+        //While the computer is moving the Thinker sees ponder is off when it has finished, see Thinker.
+        if (!on && !moving)
+            searcher.stopPonder();
+    }
+    
+    /**
+     * Sets the number of threads the computer searches with, from its next search.
+     * @param n - number of threads, 1 to search on one processor.
+     */
+    public void setThreads(int n) {
+        threads = Math.max(1, n);
+    }
+    
+    /**
+     * Time for the computer's next move, from the game clock if there is one.
+     */
+    private Project2_TimeManager_Thompson timeManager() {
+        if (clockTime > 0)
+            return Project2_TimeManager_Thompson.clock(computerClock, clockIncrement, 0);
+        return Project2_TimeManager_Thompson.fixed(maxTime);
+    }
+    
     /**
      * Simply creates the letter rows on the border of the board.
      * @param p - Display panel.
@@ -240,7 +325,7 @@ final class Project2_BoardView_Thompson extends JPanel {
                 return;
             }
         }
-        TreeSet validMoves = board.gen();
+        board.gen(0);
         int from = (startRow << 3) + startCol;
         int to = (row << 3) + col;
         boolean found = false;
@@ -257,10 +342,9 @@ final class Project2_BoardView_Thompson extends JPanel {
             promote = choice + 1;
         }
         
-        Iterator i = validMoves.iterator();
         Project2_Move_Thompson m = null;
-        while (i.hasNext()) {
-            m = (Project2_Move_Thompson) i.next();
+        for (int i = board.firstMove[0]; i < board.firstMove[1]; i++) {
+            m = new Project2_Move_Thompson(board.moveStack[i]);
             if (m.from == from && m.to == to && m.promote == promote) {
                 found = true;
                 break;
@@ -300,6 +384,7 @@ final class Project2_BoardView_Thompson extends JPanel {
      * 1.  Check search algorithm, if 0 then make a random move.
      * 2.  If 1, use Minimax 
      * 3.  If 2, use Alpha Beta pruning.
+     * 4.  If 3, use Principal Variation Search.
      * 
      * Makes the move, updates the display and resets the moving variable to indicate it is finished.
      * 
@@ -311,6 +396,7 @@ final class Project2_BoardView_Thompson extends JPanel {
     	moving = true;
     	if(this.SEARCH_ALGORITHM == 0)
     	{
+    		searcher.stopPonder();
     		Project2_Move_Thompson best = searcher.getRandomMove(this.RANDOMIZATION_ALGORITHM);
             // best = searcher.getRandom();
              //System.out.println("Best Move: " + best.from + " to " + best.to);
@@ -329,10 +415,13 @@ final class Project2_BoardView_Thompson extends JPanel {
     	}
     	else
     	{
-    		//We have selected either Minimax or Alpha Beta
+    		//We have selected Minimax, Alpha Beta, PVS or YBW
     		board.SEARCH = this.SEARCH_ALGORITHM;
+    		//Forget the last move's Move Now here rather than in think(), so one pressed before think() starts still counts.
+    		searcher.clearStop();
     		//Start our Thinker thread.
-    		(new Thinker()).start();
+    		thinker = new Thinker();
+    		thinker.start();
     		
     	}
     }
@@ -379,18 +468,10 @@ final class Project2_BoardView_Thompson extends JPanel {
      * @return true or our game is over, false if we are only in check.
      */
     boolean isResult() {
-        TreeSet validMoves = board.gen();
+        board.gen(0);
         
-        //Simple way to check for checkmate or stale mate, try making moves.
-        Iterator i = validMoves.iterator();
-        boolean found = false;
-        while (i.hasNext()) {
-            if (board.makeMove((Project2_Move_Thompson) i.next())) {
-                board.takeBack();
-                found = true;
-                break;
-            }
-        }
+        //Checkmate or stalemate if there are no legal moves, gen() only generates legal ones.
+        boolean found = board.firstMove[1] > board.firstMove[0];
         String message = null;
         if (!found) {
             if (board.inCheck(board.side)) {
@@ -491,8 +572,19 @@ final class Project2_BoardView_Thompson extends JPanel {
      */
     class Thinker extends Thread {
         public void run() {
-        	//think launches one of our searches depending on what we have selected.
-            searcher.think(1, maxTime, maxDepth);
+            long start = System.currentTimeMillis();
+            //If the computer was pondering on the move the human played, that search carries on, otherwise
+            //think launches one of our searches depending on what we have selected.
+            //ponderHit() has waited for any ponder search, so nothing is searching while the thread count changes.
+            boolean hit = searcher.ponderHit(board.getHash());
+            searcher.setThreads(threads);
+            if (!hit)
+                searcher.think(1, timeManager(), maxDepth);
+            //On a game clock the time manager decides how long to think, then the clock is charged for it.
+            if (clockTime > 0) {
+                computerClock += clockIncrement - (System.currentTimeMillis() - start);
+                System.out.println("Computer clock: " + (computerClock / 1000) + " s");
+            }
             //The move is stored at the end of our PV arra so return the last value.
             Project2_Move_Thompson best = searcher.getBest();
            // best = searcher.getRandom();
@@ -508,8 +600,13 @@ final class Project2_BoardView_Thompson extends JPanel {
             movePieces(best);
             //Release turn.
             switchMoveMarkers();
-            isResult();
+            //Think about the human's expected reply on the human's time.
+            if (!isResult() && ponder)
+                searcher.startPonder(1, timeManager(), maxDepth);
             moving = false;
+            //Ponder was turned off while we were moving, setPonder() left it to us.
+            if (!ponder)
+                searcher.stopPonder();
         }
     }
 }
@@ -23,6 +23,18 @@ import java.util.*;
  * 1.  added public Move getRandomMove(int RANDOMIZATION_ALGORITHM) to generate a random move.
  * 2.  added public int getScore() - New hueristic method.
  * 3.  added public int evalMinMax() - Not used, was original hueristic implementation.
+ * 4.  added bitboards (pieceBB, sideBB, occupied) kept in step with color[]/piece[].  Move generation and attack
+ *     detection run off the bitboards and the lookup tables in Project2_Bitboard_Thompson.
+ * 5.  added a Zobrist hash key for the position, updated incrementally by makeMove()/takeBack().
+ * 6.  added see() (static exchange evaluation), captures that lose material are ordered after the quiet moves.
+ * 7.  material (pieceMat, pawnMat) and piece/square sums (pcsq) are kept up to date by makeMove()/takeBack().
+ * 8.  pawn structure scores are cached in a pawn hash table keyed by pawnHash.
+ * 9.  added a copy constructor and setFen() so positions can be set up and searched on their own board (see Project2_Perft_Thompson).
+ * 10. added makeNullMove()/takeBackNull() for null move pruning.
+ * 11. gen() and genCaps() only generate legal moves, using the checkers and pinned pieces found by findPins(),
+ *     so their moves can be made with makeLegalMove() without testing for check afterwards.
+ * 12. the king squares are kept in kingSquare[] by addPiece()/removePiece(), and attack() only does the
+ *     slider lookups when a slider is on a line with the square.
  * 
  * @version 2011.0402
  * @since 1.6
@@ -40,7 +52,7 @@ final public class Project2_Board_Thompson {
     
     /**
      * Integer value representing the selected search algorithm.
-     * 
+     * 1 - Minimax, 2 - Alpha Beta, 3 - Principal Variation Search, 4 - Young Brothers Wait.
      */
     public int SEARCH = 2;
     
@@ -96,6 +108,12 @@ final public class Project2_Board_Thompson {
      * 
      */
     final static int HIST_STACK = 400;
+    
+    /**
+     * Size of the move stack.  Each ply of the search gets its own slice of moveStack/moveScore,
+     * from firstMove[ply] up to firstMove[ply + 1], so nothing has to be allocated while searching.
+     */
+    final static int GEN_STACK = Project2_Search_Thompson.MAX_PLY * 256;
 
     /**
      * Current active player
@@ -116,14 +134,42 @@ final public class Project2_Board_Thompson {
     int history[][] = new int[64][64];
     Project2_HistoryData_Thompson histDat[] = new Project2_HistoryData_Thompson[HIST_STACK];
     
+    /**
+     * Move stack filled by gen()/genCaps().  Moves are packed ints, moveScore holds their ordering scores.
+     */
+    int moveStack[] = new int[GEN_STACK];
+    int moveScore[] = new int[GEN_STACK];
+    int firstMove[] = new int[Project2_Search_Thompson.MAX_PLY + 1];
+    /**
+     * Next free slot while a generator is running.
+     */
+    private int genEnd;
+    
+    /**
+     * Filled in by findPins() for the generator that is running: the side to move's king square, the pieces
+     * checking it, its own pieces pinned to it, and the squares any other piece has to move to (everywhere,
+     * or when in check by one piece the checker and the squares between it and the king).
+     */
+    private int kingSq;
+    private long checkers;
+    private long pinned;
+    private long evasion;
+    
     //Pawn rank scores.
     int pawnRank[][] = new int [2][10];
     
     /**
      * Material value arrays, used to hold material scores for black/white players.
+     * Kept up to date by addPiece()/removePiece() along with pcsq, the sum of each side's piece/square values.
      */
     int pieceMat[] = new int[2];
     int pawnMat[] = new int[2];
+    int pcsq[] = new int[2];
+    
+    /**
+     * When true, getScore() checks the incremental material and piece/square sums against a full scan of the board.
+     */
+    boolean verifyEval = false;
     
     /**
      * Default board color configuration, 0 - white, 1 black, 6 - empty
@@ -154,6 +200,64 @@ final public class Project2_Board_Thompson {
 	3, 1, 2, 4, 5, 2, 1, 3
     };
     
+    /**
+     * Bitboards mirroring color[] and piece[].  Bit n is set when square n holds the piece.
+     * pieceBB is indexed by [side][piece], sideBB by side, occupied is every piece on the board.
+     * They are only changed through addPiece()/removePiece() so the two representations never disagree.
+     */
+    long pieceBB[][] = new long[2][6];
+    long sideBB[] = new long[2];
+    long occupied = 0;
+    
+    /**
+     * Square of each side's king, -1 if it has none (only possible with setFen()).
+     */
+    int kingSquare[] = { E1, E8 };
+    
+    /**
+     * Zobrist hash key of the current position.  It is the XOR of a random number for every piece on
+     * its square, one for the side to move when it is dark, one for the castle rights and one for the
+     * en passant square.  Every change to the board XORs the old term out and the new one in.
+     */
+    long hash = 0;
+    
+    /**
+     * Zobrist key of the pawns alone, the XOR of hashPiece for every pawn.  Used to look up the pawn structure in pawnTable.
+     */
+    long pawnHash = 0;
+    
+    /**
+     * Pawn structure cache, see evalPawns().
+     */
+    Project2_PawnHashTable_Thompson pawnTable = new Project2_PawnHashTable_Thompson(Project2_PawnHashTable_Thompson.DEFAULT_SIZE);
+    
+    /**
+     * Pawn structure scores for each side, filled in by evalPawns().
+     */
+    int pawnScore[] = new int[2];
+    
+    /**
+     * Zobrist random numbers, [side][piece][square] for the pieces.
+     */
+    static final long hashPiece[][][] = new long[2][6][64];
+    static final long hashCastle[] = new long[16];
+    static final long hashEp[] = new long[64];
+    static final long hashSide;
+    
+    static {
+        //Fixed seed so keys are the same from run to run.
+        Random r = new Random(20110423L);
+        for (int s = 0; s < 2; ++s)
+            for (int p = 0; p < 6; ++p)
+                for (int sq = 0; sq < 64; ++sq)
+                    hashPiece[s][p][sq] = r.nextLong();
+        for (int i = 0; i < 16; ++i)
+            hashCastle[i] = r.nextLong();
+        for (int i = 0; i < 64; ++i)
+            hashEp[i] = r.nextLong();
+        hashSide = r.nextLong();
+    }
+    
     
     /**
      * Character represetations of our pieces.
@@ -230,6 +334,18 @@ final public class Project2_Board_Thompson {
             100, 300, 300, 500, 900, 0
     };
     
+    /**
+     * Piece values for see(), the king is given a huge value so it is only ever used to capture last.
+     */
+    final static int seeValue[] = {
+            100, 300, 300, 500, 900, 20000
+    };
+    
+    /**
+     * Scratch space for see(), one entry per capture in the sequence.
+     */
+    private int seeGain[] = new int[32];
+    
     /* The "pcsq" arrays are piece/square tables. They're values
     added to the material value of the piece based on the
     location of the piece. */
@@ -312,6 +428,243 @@ final public class Project2_Board_Thompson {
             0,   1,   2,   3,   4,   5,   6,   7
     };
     
+    /**
+     * Constructor
+     * 
+     * Sets up the bitboards for the starting position held in color[] and piece[] and allocates the history stack.
+     */
+    public Project2_Board_Thompson() {
+        for (int i = 0; i < HIST_STACK; ++i)
+            histDat[i] = new Project2_HistoryData_Thompson();
+        initBitboards();
+        hash = computeHash();
+    }
+    
+    /**
+     * Copy constructor
+     * 
+     * Copies the position, the move history (so repetitions are still seen) and the history heuristic.
+     * The move stack and the pawn hash table are not shared, so the copy can be searched on another thread.
+     * 
+     * @param b - Board to copy.
+     */
+    public Project2_Board_Thompson(Project2_Board_Thompson b) {
+        for (int i = 0; i < HIST_STACK; ++i)
+            histDat[i] = new Project2_HistoryData_Thompson();
+        copyFrom(b);
+    }
+    
+    /**
+     * Sets this board to b's position, move history and history heuristic, the same as the copy constructor
+     * but reusing this board's arrays and pawn hash table.
+     * 
+     * @param b - Board to copy.
+     */
+    void copyFrom(Project2_Board_Thompson b) {
+        System.arraycopy(b.color, 0, color, 0, 64);
+        System.arraycopy(b.piece, 0, piece, 0, 64);
+        side = b.side;
+        xside = b.xside;
+        castle = b.castle;
+        ep = b.ep;
+        fifty = b.fifty;
+        hply = b.hply;
+        SEARCH = b.SEARCH;
+        verifyEval = b.verifyEval;
+        for (int i = 0; i < hply; ++i)
+            histDat[i].copy(b.histDat[i]);
+        for (int i = 0; i < 64; ++i)
+            System.arraycopy(b.history[i], 0, history[i], 0, 64);
+        initBitboards();
+        hash = computeHash();
+    }
+    
+    /**
+     * Sets up a position from a FEN string.  The move history is cleared.
+     * 
+     * The halfmove clock and move number fields are optional.
+     * 
+     * @param fen - Position in Forsyth-Edwards Notation.
+     * @throws IllegalArgumentException if the string isn't a valid position.
+     */
+    public void setFen(String fen) {
+        String f[] = fen.trim().split("\\s+");
+        if (f.length < 4)
+            throw new IllegalArgumentException("Incomplete FEN: " + fen);
+        int c[] = new int[64];
+        int p[] = new int[64];
+        int sq = 0;
+        for (int i = 0; i < f[0].length(); ++i) {
+            char ch = f[0].charAt(i);
+            if (ch == '/')
+                continue;
+            if (ch >= '1' && ch <= '8') {
+                for (int n = ch - '0'; n > 0 && sq < 64; --n, ++sq) {
+                    c[sq] = EMPTY;
+                    p[sq] = EMPTY;
+                }
+                continue;
+            }
+            int t = "pnbrqk".indexOf(Character.toLowerCase(ch));
+            if (t == -1 || sq >= 64)
+                throw new IllegalArgumentException("Bad piece placement in FEN: " + fen);
+            c[sq] = Character.isUpperCase(ch) ? LIGHT : DARK;
+            p[sq] = t;
+            ++sq;
+        }
+        if (sq != 64)
+            throw new IllegalArgumentException("Bad piece placement in FEN: " + fen);
+        if (!f[1].equals("w") && !f[1].equals("b"))
+            throw new IllegalArgumentException("Bad side to move in FEN: " + fen);
+        int e = -1;
+        if (!f[3].equals("-")) {
+            if (f[3].length() != 2 || f[3].charAt(0) < 'a' || f[3].charAt(0) > 'h' || f[3].charAt(1) < '1' || f[3].charAt(1) > '8')
+                throw new IllegalArgumentException("Bad en passant square in FEN: " + fen);
+            e = (f[3].charAt(0) - 'a') + 8 * ('8' - f[3].charAt(1));
+        }
+        
+        System.arraycopy(c, 0, color, 0, 64);
+        System.arraycopy(p, 0, piece, 0, 64);
+        side = f[1].equals("w") ? LIGHT : DARK;
+        xside = side ^ 1;
+        castle = 0;
+        if (f[2].indexOf('K') != -1)
+            castle |= 1;
+        if (f[2].indexOf('Q') != -1)
+            castle |= 2;
+        if (f[2].indexOf('k') != -1)
+            castle |= 4;
+        if (f[2].indexOf('q') != -1)
+            castle |= 8;
+        ep = e;
+        fifty = 0;
+        if (f.length > 4) {
+            try {
+                fifty = Integer.parseInt(f[4]);
+            }
+            catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Bad halfmove clock in FEN: " + fen);
+            }
+        }
+        hply = 0;
+        initBitboards();
+        hash = computeHash();
+    }
+    
+    /**
+     * Computes the hash key of the current position from scratch.
+     * makeMove()/takeBack() keep hash up to date, this is for setting up a position and checking that they do.
+     * 
+     * @return Zobrist key of the position.
+     */
+    long computeHash() {
+        long h = 0;
+        for (int i = 0; i < 64; ++i)
+            if (color[i] != EMPTY)
+                h ^= hashPiece[color[i]][piece[i]][i];
+        h ^= hashCastle[castle];
+        if (ep != -1)
+            h ^= hashEp[ep];
+        if (side == DARK)
+            h ^= hashSide;
+        return h;
+    }
+    
+    /**
+     * Hash key of the current position.
+     * 
+     * @return Zobrist key, the same position always gives the same key.
+     */
+    public long getHash() {
+        return hash;
+    }
+    
+    /**
+     * Rebuilds every bitboard, the pawn key, and the material and piece/square sums, from color[] and piece[].
+     */
+    void initBitboards() {
+        for (int s = 0; s < 2; ++s) {
+            sideBB[s] = 0;
+            for (int p = 0; p < 6; ++p)
+                pieceBB[s][p] = 0;
+            pieceMat[s] = 0;
+            pawnMat[s] = 0;
+            pcsq[s] = 0;
+        }
+        occupied = 0;
+        pawnHash = 0;
+        kingSquare[LIGHT] = -1;
+        kingSquare[DARK] = -1;
+        for (int i = 0; i < 64; ++i)
+            if (color[i] != EMPTY) {
+                long b = 1L << i;
+                pieceBB[color[i]][piece[i]] |= b;
+                sideBB[color[i]] |= b;
+                occupied |= b;
+                if (piece[i] == PAWN) {
+                    pawnMat[color[i]] += pieceValue[PAWN];
+                    pawnHash ^= hashPiece[color[i]][PAWN][i];
+                }
+                else
+                    pieceMat[color[i]] += pieceValue[piece[i]];
+                if (piece[i] == KING)
+                    kingSquare[color[i]] = i;
+                pcsq[color[i]] += pcsqValue(color[i], piece[i], i);
+            }
+    }
+    
+    /**
+     * Puts a piece on an empty square.
+     * 
+     * @param sq - Square
+     * @param c - Color of the piece
+     * @param p - Piece type
+     */
+    private void addPiece(int sq, int c, int p) {
+        long b = 1L << sq;
+        color[sq] = c;
+        piece[sq] = p;
+        pieceBB[c][p] |= b;
+        sideBB[c] |= b;
+        occupied |= b;
+        hash ^= hashPiece[c][p][sq];
+        if (p == PAWN) {
+            pawnMat[c] += pieceValue[PAWN];
+            pawnHash ^= hashPiece[c][PAWN][sq];
+        }
+        else
+            pieceMat[c] += pieceValue[p];
+        if (p == KING)
+            kingSquare[c] = sq;
+        pcsq[c] += pcsqValue(c, p, sq);
+    }
+    
+    /**
+     * Clears an occupied square.
+     * 
+     * @param sq - Square
+     */
+    private void removePiece(int sq) {
+        long b = ~(1L << sq);
+        int c = color[sq];
+        int p = piece[sq];
+        hash ^= hashPiece[c][p][sq];
+        if (p == PAWN) {
+            pawnMat[c] -= pieceValue[PAWN];
+            pawnHash ^= hashPiece[c][PAWN][sq];
+        }
+        else
+            pieceMat[c] -= pieceValue[p];
+        if (p == KING)
+            kingSquare[c] = -1;
+        pcsq[c] -= pcsqValue(c, p, sq);
+        pieceBB[c][p] &= b;
+        sideBB[c] &= b;
+        occupied &= b;
+        color[sq] = EMPTY;
+        piece[sq] = EMPTY;
+    }
+    
     
     /**
      * 
@@ -393,28 +746,22 @@ final public class Project2_Board_Thompson {
     	while(next < A.length)
     	{
     	randomPieces = A[next];
-    	TreeSet moves = this.gen();
-    	Iterator possibleMove = moves.iterator();
+    	this.gen(0);
     	//Iterate over the available moves.
-    	while(possibleMove.hasNext())
+    	for(int i = firstMove[0]; i < firstMove[1]; i++)
     	{
-    		Project2_Move_Thompson curr = (Project2_Move_Thompson)possibleMove.next();
+    		int curr = moveStack[i];
     		//Is this move for our chosen piece.
-    		if(curr.from == randomPieces)
+    		if(Project2_Move_Thompson.getFrom(curr) == randomPieces)
     		{
-    			//We need to make sure the move is legal
-    			if(this.makeMove(curr))
+    			//gen() only generates legal moves, so take the first one.
+    			try{
+    				System.out.println("Random Move: " + Project2_Move_Thompson.getFrom(curr) + " to " + Project2_Move_Thompson.getTo(curr));
+    			}catch(Exception ex)
     			{
-    				//Undo the move so we can return it.
-    				this.takeBack();
-    				try{
-    					System.out.println("Random Move: " + curr.from + " to " + curr.to);
-    				}catch(Exception ex)
-    				{
-    					
-    				}
-    				return curr;
+    				
     			}
+    			return new Project2_Move_Thompson(curr);
     		}
     	}
     	next++;
@@ -434,8 +781,8 @@ final public class Project2_Board_Thompson {
     /**
     * 
     * inCheck() returns true if side s is in check and false
-    *	otherwise. It just scans the board to find side s's king
-    *	and calls attack() to see if it's being attacked. 
+    *	otherwise. The king's square comes straight from kingSquare[]
+    *	and attack() is called to see if it's being attacked. 
     *
     *	@param s - Side to check.
     *	@return true of false depending on state of game for the chosen player.
@@ -443,222 +790,279 @@ final public class Project2_Board_Thompson {
     */
 
     boolean inCheck(int s) {
-        int i;
-        boolean check = false;
-        for (i = 0; i < 64; ++i)
-            if (piece[i] == KING && color[i] == s)
-            {
-                check = attack(i, s ^ 1);
-                //if(check)
-                	//System.out.println("Oh Snap, in Check");
-                return check;
-            }
-        return true;  /* shouldn't get here */
+        int k = kingSquare[s];
+        if (k < 0)
+            return true;  /* shouldn't get here */
+        return attack(k, s ^ 1);
     }
     
 
     
     /**
-     * This is written strangely but it checks to see if the square in sq is being attacked by side s.
-     * 
+     * Checks to see if the square in sq is being attacked by side s.
      * 
+     * Rather than looping over side s' pieces, we look outwards from sq: a knight on sq would attack
+     * exactly the squares a knight of side s would have to stand on to attack sq, and the same holds
+     * for kings, pawns (using the other side's pawn pattern) and the sliding pieces.  The cheap leaper
+     * tests go first, and the magic lookups are skipped when no slider is even on a line with sq.
      * 
      * @param sq - Square to check.
      * @param s - Side attacking to check
      * @returns true or false
      * 
-     * 
-     * 
      */
     
     boolean attack(int sq, int s) {
-	int i, j, n;
-
-	//Loop through our entire board looking for pieces that are being directly attacked. 
-	//Assuming we find some, return true otherwise all of side s' peices are in good shape.
-	for (i = 0; i < 64; ++i)
-            if (color[i] == s) {
-                int p = piece[i];
-                if (p == PAWN) {
-                    if (s == LIGHT) {
-                        if (COL(i) != 0 && i - 9 == sq)
-                            return true;
-                        if (COL(i) != 7 && i - 7 == sq)
-                            return true;
-                    }
-                    else {
-                        if (COL(i) != 0 && i + 7 == sq)
-                            return true;
-                        if (COL(i) != 7 && i + 9 == sq)
-                            return true;
-                    }
-                }
-                else
-                    for (j = 0; j < offsets[p]; ++j)
-                        for (n = i;;) {
-                            n = mailbox[mailbox64[n] + offset[p][j]];
-                            if (n == -1)
-                                break;
-                            if (n == sq)
-                                return true;
-                            if (color[n] != EMPTY)
-                                break;
-                            if (!slide[p])
-                                break;
-                        }
-            }
-	return false;
+	return attack(sq, s, occupied);
+    }
+    
+    /**
+     * attack() with occ as the occupied squares.  The king moves use this with the king itself taken off,
+     * so it can't step back along the line of a slider that is checking it.
+     */
+    boolean attack(int sq, int s, long occ) {
+	long bb[] = pieceBB[s];
+	if ((Project2_Bitboard_Thompson.pawnAttacks[s ^ 1][sq] & bb[PAWN]) != 0)
+            return true;
+	if ((Project2_Bitboard_Thompson.knightAttacks[sq] & bb[KNIGHT]) != 0)
+            return true;
+	if ((Project2_Bitboard_Thompson.kingAttacks[sq] & bb[KING]) != 0)
+            return true;
+	long diag = bb[BISHOP] | bb[QUEEN];
+	if ((Project2_Bitboard_Thompson.bishopRays[sq] & diag) != 0
+                && (Project2_Bitboard_Thompson.bishopAttacks(sq, occ) & diag) != 0)
+            return true;
+	long straight = bb[ROOK] | bb[QUEEN];
+	return (Project2_Bitboard_Thompson.rookRays[sq] & straight) != 0
+                && (Project2_Bitboard_Thompson.rookAttacks(sq, occ) & straight) != 0;
     }
 
 
     /**
-     *  gen() generates pseudo-legal moves for the current position.
-     *  It scans the board to find friendly pieces and then determines
-     *  what squares they attack. When it finds a piece/square
+     * Works out the checkers, pinned pieces and evasion squares for the side to move, once per generator call.
+     * 
+     * A pin is found by looking out from the king through the side to move's own pieces: an enemy slider seen
+     * that way with exactly one piece between it and the king, and that piece ours, pins it.
+     */
+    private void findPins() {
+	kingSq = kingSquare[side];
+	if (kingSq < 0) {  /* shouldn't get here, but setFen() lets it through */
+            checkers = 0;
+            pinned = 0;
+            evasion = ~0L;
+            return;
+	}
+	long bb[] = pieceBB[xside];
+	long diag = bb[BISHOP] | bb[QUEEN];
+	long straight = bb[ROOK] | bb[QUEEN];
+	checkers = (Project2_Bitboard_Thompson.pawnAttacks[side][kingSq] & bb[PAWN])
+                | (Project2_Bitboard_Thompson.knightAttacks[kingSq] & bb[KNIGHT])
+                | (Project2_Bitboard_Thompson.bishopAttacks(kingSq, occupied) & diag)
+                | (Project2_Bitboard_Thompson.rookAttacks(kingSq, occupied) & straight);
+	pinned = 0;
+	long snipers = (Project2_Bitboard_Thompson.bishopAttacks(kingSq, sideBB[xside]) & diag)
+                | (Project2_Bitboard_Thompson.rookAttacks(kingSq, sideBB[xside]) & straight);
+	while (snipers != 0) {
+            int s = Long.numberOfTrailingZeros(snipers);
+            snipers &= snipers - 1;
+            long b = Project2_Bitboard_Thompson.between[kingSq][s] & occupied;
+            if (b != 0 && (b & (b - 1)) == 0 && (b & sideBB[side]) != 0)
+                pinned |= b;
+	}
+	if (checkers == 0)
+            evasion = ~0L;
+	else if ((checkers & (checkers - 1)) == 0)
+            evasion = checkers | Project2_Bitboard_Thompson.between[kingSq][Long.numberOfTrailingZeros(checkers)];
+	else
+            evasion = 0;  /* double check, only the king can move */
+    }
+    
+    /**
+     * Squares the piece on sq may legally move to as far as checks and pins go (the king is handled on its own).
+     */
+    private long legalTargets(int sq) {
+	if ((pinned & (1L << sq)) != 0)
+            return evasion & Project2_Bitboard_Thompson.line[kingSq][sq];
+	return evasion;
+    }
+    
+    /**
+     * Adds the king's moves to targets that aren't attacked once it has moved.
+     */
+    private void genKing(long targets) {
+	if (kingSq < 0)
+            return;
+	long occ = occupied ^ (1L << kingSq);
+	long enemy = sideBB[xside];
+	while (targets != 0) {
+            int n = Long.numberOfTrailingZeros(targets);
+            targets &= targets - 1;
+            if (!attack(n, xside, occ))
+                genPush(kingSq, n, ((enemy >>> n) & 1) != 0 ? 1 : 0);
+	}
+    }
+
+    /**
+     *  gen() generates the legal moves for the current position.
+     *  It walks the bitboards of the friendly pieces and looks up
+     *  what squares they attack, keeping only the squares that
+     *  findPins() allows. When it finds a piece/square
      *  combination, it calls genPush to put the move on the "move
-     *  stack." 
+     *  stack."  In double check only the king moves are generated.
+     *  
+     *  @param ply - search ply, the moves end up between firstMove[ply] and firstMove[ply + 1].
      *  */
     
-    TreeSet gen() {
-        TreeSet ret = new TreeSet();
+    void gen(int ply) {
+        genEnd = firstMove[ply];
+        long own = sideBB[side];
+        long enemy = sideBB[xside];
+        findPins();
         
-	for (int i = 0; i < 64; ++i)
-            if (color[i] == side) {
-                if (piece[i] == PAWN) {
-                    if (side == LIGHT) {
-                        if (COL(i) != 0 && color[i - 9] == DARK)
-                            genPush(ret, i, i - 9, 17);
-                        if (COL(i) != 7 && color[i - 7] == DARK)
-                            genPush(ret, i, i - 7, 17);
-                        if (color[i - 8] == EMPTY) {
-                            genPush(ret, i, i - 8, 16);
-                            if (i >= 48 && color[i - 16] == EMPTY)
-                                genPush(ret, i, i - 16, 24);
-                        }
-                    }
-                    else {
-                        if (COL(i) != 0 && color[i + 7] == LIGHT)
-                            genPush(ret, i, i + 7, 17);
-                        if (COL(i) != 7 && color[i + 9] == LIGHT)
-                            genPush(ret, i, i + 9, 17);
-                        if (color[i + 8] == EMPTY) {
-                            genPush(ret, i, i + 8, 16);
-                            if (i <= 15 && color[i + 16] == EMPTY)
-                                genPush(ret, i, i + 16, 24);
-                        }
-                    }
+        if (evasion != 0) {
+	/* pawns: captures, single and double pushes */
+	long pawns = pieceBB[side][PAWN];
+	while (pawns != 0) {
+            int i = Long.numberOfTrailingZeros(pawns);
+            pawns &= pawns - 1;
+            long allowed = legalTargets(i);
+            long caps = Project2_Bitboard_Thompson.pawnAttacks[side][i] & enemy & allowed;
+            while (caps != 0) {
+                genPush(i, Long.numberOfTrailingZeros(caps), 17);
+                caps &= caps - 1;
+            }
+            if (side == LIGHT) {
+                if (color[i - 8] == EMPTY) {
+                    if ((allowed & (1L << (i - 8))) != 0)
+                        genPush(i, i - 8, 16);
+                    if (i >= 48 && color[i - 16] == EMPTY && (allowed & (1L << (i - 16))) != 0)
+                        genPush(i, i - 16, 24);
+                }
+            }
+            else {
+                if (color[i + 8] == EMPTY) {
+                    if ((allowed & (1L << (i + 8))) != 0)
+                        genPush(i, i + 8, 16);
+                    if (i <= 15 && color[i + 16] == EMPTY && (allowed & (1L << (i + 16))) != 0)
+                        genPush(i, i + 16, 24);
                 }
-                else
-                    for (int j = 0; j < offsets[piece[i]]; ++j)
-                        for (int n = i;;) {
-                            n = mailbox[mailbox64[n] + offset[piece[i]][j]];
-                            if (n == -1)
-                                break;
-                            if (color[n] != EMPTY) {
-                                if (color[n] == xside)
-                                    genPush(ret, i, n, 1);
-                                break;
-                            }
-                            genPush(ret, i, n, 0);
-                            if (!slide[piece[i]])
-                                break;
-                        }
             }
+	}
 
-	/* generate castle moves */
+	/* everything else */
+	for (int p = KNIGHT; p <= QUEEN; ++p) {
+            long pieces = pieceBB[side][p];
+            while (pieces != 0) {
+                int i = Long.numberOfTrailingZeros(pieces);
+                pieces &= pieces - 1;
+                long targets = Project2_Bitboard_Thompson.attacks(p, i, occupied) & ~own & legalTargets(i);
+                while (targets != 0) {
+                    int n = Long.numberOfTrailingZeros(targets);
+                    targets &= targets - 1;
+                    genPush(i, n, ((enemy >>> n) & 1) != 0 ? 1 : 0);
+                }
+            }
+	}
+        }
+	genKing((kingSq < 0) ? 0 : Project2_Bitboard_Thompson.kingAttacks[kingSq] & ~own);
+
+	/* generate castle moves, not out of or through check */
+	if (checkers == 0) {
 	if (side == LIGHT) {
-            if ((castle & 1) != 0)
-                genPush(ret, E1, G1, 2);
-            if ((castle & 2) != 0)
-                genPush(ret, E1, C1, 2);
+            if ((castle & 1) != 0 && castleAllowed(G1))
+                genPush(E1, G1, 2);
+            if ((castle & 2) != 0 && castleAllowed(C1))
+                genPush(E1, C1, 2);
 	}
 	else {
-            if ((castle & 4) != 0)
-                genPush(ret, E8, G8, 2);
-            if ((castle & 8) != 0)
-                genPush(ret, E8, C8, 2);
+            if ((castle & 4) != 0 && castleAllowed(G8))
+                genPush(E8, G8, 2);
+            if ((castle & 8) != 0 && castleAllowed(C8))
+                genPush(E8, C8, 2);
 	}
-	
-	/* generate en passant moves */
-	if (ep != -1) {
-            if (side == LIGHT) {
-                if (COL(ep) != 0 && color[ep + 7] == LIGHT && piece[ep + 7] == PAWN)
-                    genPush(ret, ep + 7, ep, 21);
-                if (COL(ep) != 7 && color[ep + 9] == LIGHT && piece[ep + 9] == PAWN)
-                    genPush(ret, ep + 9, ep, 21);
-            }
-            else {
-                if (COL(ep) != 0 && color[ep - 9] == DARK && piece[ep - 9] == PAWN)
-                    genPush(ret, ep - 9, ep, 21);
-                if (COL(ep) != 7 && color[ep - 7] == DARK && piece[ep - 7] == PAWN)
-                    genPush(ret, ep - 7, ep, 21);
-            }
 	}
-        return ret;
+	
+	genEnPassant();
+        firstMove[ply + 1] = genEnd;
     }
 
 
 /**
  *  genCaps() is basically a copy of gen() that's modified to
  *  only generate capture and promote moves. It's used by the
- *  quiescence search. */
-
-    TreeSet genCaps() {
-        TreeSet ret = new TreeSet();
-
-	for (int i = 0; i < 64; ++i)
-            if (color[i] == side) {
-            	//Pawns get specialc cases
-                if (piece[i]==PAWN) {
-                	//Opponent
-                    if (side == LIGHT) {
-                        if (COL(i) != 0 && color[i - 9] == DARK)
-                            genPush(ret, i, i - 9, 17);
-                        if (COL(i) != 7 && color[i - 7] == DARK)
-                            genPush(ret, i, i - 7, 17);
-                        if (i <= 15 && color[i - 8] == EMPTY)
-                            genPush(ret, i, i - 8, 16);
-                    }
-                    //Computer
-                    if (side == DARK) {
-                        if (COL(i) != 0 && color[i + 7] == LIGHT)
-                            genPush(ret, i, i + 7, 17);
-                        if (COL(i) != 7 && color[i + 9] == LIGHT)
-                            genPush(ret, i, i + 9, 17);
-                        if (i >= 48 && color[i + 8] == EMPTY)
-                            genPush(ret, i, i + 8, 16);
-                    }
-                }
-                else //Not a pawn, basically everything else.
-                    for (int j = 0; j < offsets[piece[i]]; ++j)
-                        for (int n = i;;) {
-                            n = mailbox[mailbox64[n] + offset[piece[i]][j]];
-                            if (n == -1)
-                                break;
-                            if (color[n] != EMPTY) {
-                                if (color[n] == xside)
-                                    genPush(ret, i, n, 1);
-                                break;
-                            }
-                            if (!slide[piece[i]])
-                                break;
-                        }
+ *  quiescence search.  Like gen() it only generates legal moves. */
+
+    void genCaps(int ply) {
+        genEnd = firstMove[ply];
+        long enemy = sideBB[xside];
+        findPins();
+
+        if (evasion != 0) {
+	long pawns = pieceBB[side][PAWN];
+	while (pawns != 0) {
+            int i = Long.numberOfTrailingZeros(pawns);
+            pawns &= pawns - 1;
+            long allowed = legalTargets(i);
+            long caps = Project2_Bitboard_Thompson.pawnAttacks[side][i] & enemy & allowed;
+            while (caps != 0) {
+                genPush(i, Long.numberOfTrailingZeros(caps), 17);
+                caps &= caps - 1;
             }
-	if (ep != -1) {
+            //Pushes only count when they promote.  Light pawns move towards row 0 so they promote
+            //from row 1 (i <= 15), dark pawns move towards row 7 and promote from row 6 (i >= 48).
             if (side == LIGHT) {
-                if (COL(ep) != 0 && color[ep + 7] == LIGHT && piece[ep + 7] == PAWN)
-                    genPush(ret, ep + 7, ep, 21);
-                if (COL(ep) != 7 && color[ep + 9] == LIGHT && piece[ep + 9] == PAWN)
-                    genPush(ret, ep + 9, ep, 21);
+                if (i <= 15 && color[i - 8] == EMPTY && (allowed & (1L << (i - 8))) != 0)
+                    genPush(i, i - 8, 16);
             }
             else {
-                if (COL(ep) != 0 && color[ep - 9] == DARK && piece[ep - 9] == PAWN)
-                    genPush(ret, ep - 9, ep, 21);
-                if (COL(ep) != 7 && color[ep - 7] == DARK && piece[ep - 7] == PAWN)
-                    genPush(ret, ep - 7, ep, 21);
+                if (i >= 48 && color[i + 8] == EMPTY && (allowed & (1L << (i + 8))) != 0)
+                    genPush(i, i + 8, 16);
             }
 	}
-        return ret;
+
+	//Not a pawn, basically everything else.
+	for (int p = KNIGHT; p <= QUEEN; ++p) {
+            long pieces = pieceBB[side][p];
+            while (pieces != 0) {
+                int i = Long.numberOfTrailingZeros(pieces);
+                pieces &= pieces - 1;
+                long targets = Project2_Bitboard_Thompson.attacks(p, i, occupied) & enemy & legalTargets(i);
+                while (targets != 0) {
+                    genPush(i, Long.numberOfTrailingZeros(targets), 1);
+                    targets &= targets - 1;
+                }
+            }
+	}
+        }
+	genKing((kingSq < 0) ? 0 : Project2_Bitboard_Thompson.kingAttacks[kingSq] & enemy);
+
+	genEnPassant();
+        firstMove[ply + 1] = genEnd;
+    }
+
+    /**
+     * Adds the legal en passant captures, if any, to the move stack.
+     * 
+     * Two pawns leave the row at once, which can uncover a rook on the king's row that isn't a pin of either
+     * pawn on its own, so each capture is checked by looking at the board as it would be after it.
+     */
+    private void genEnPassant() {
+	if (ep == -1 || kingSq < 0)
+            return;
+	int victim = (side == LIGHT) ? ep + 8 : ep - 8;
+	long bb[] = pieceBB[xside];
+	long attackers = Project2_Bitboard_Thompson.pawnAttacks[xside][ep] & pieceBB[side][PAWN];
+	while (attackers != 0) {
+            int from = Long.numberOfTrailingZeros(attackers);
+            attackers &= attackers - 1;
+            long occ = (occupied ^ (1L << from) ^ (1L << victim)) | (1L << ep);
+            if ((Project2_Bitboard_Thompson.pawnAttacks[side][kingSq] & bb[PAWN] & ~(1L << victim)) != 0
+                    || (Project2_Bitboard_Thompson.knightAttacks[kingSq] & bb[KNIGHT]) != 0
+                    || (Project2_Bitboard_Thompson.bishopAttacks(kingSq, occ) & (bb[BISHOP] | bb[QUEEN])) != 0
+                    || (Project2_Bitboard_Thompson.rookAttacks(kingSq, occ) & (bb[ROOK] | bb[QUEEN])) != 0)
+                continue;
+            genPush(from, ep, 21);
+	}
     }
 
     /** genPush() puts a move on the move stack, unless it's a
@@ -668,48 +1072,140 @@ final public class Project2_Board_Thompson {
     (Most Valuable Victim/Least Valuable Attacker). Otherwise,
     it uses the move's history heuristic value. Note that
     1,000,000 is added to a capture move's score, so it
-    always gets ordered above a "normal" move. */
+    always gets ordered above a "normal" move.
     
-    void genPush(TreeSet ret, int from, int to, int bits) {
+    Captures of a cheaper piece might just lose the attacker, so
+    those are checked with see().  If the exchange loses material
+    the move gets its (negative) SEE value as its score instead,
+    which puts it after all the quiet moves. */
+    
+    void genPush(int from, int to, int bits) {
 	if ((bits & 16) != 0) {
             if (side == LIGHT) {
                 if (to <= H8) {
-                    genPromote(ret, from, to, bits);
+                    genPromote(from, to, bits);
                     return;
                 }
             }
             else {
                 if (to >= A1) {
-                    genPromote(ret, from, to, bits);
+                    genPromote(from, to, bits);
                     return;
                 }
             }
 	}
 
-	Project2_Move_Thompson g = new Project2_Move_Thompson(from, to, 0, bits);
-        
-	if (color[to] != EMPTY)
-            g.setScore(1000000 + (piece[to] * 10) - piece[from]);
+	int m = Project2_Move_Thompson.pack(from, to, 0, bits);
+	moveStack[genEnd] = m;
+	if ((bits & 1) != 0) {
+            int victim = ((bits & 4) != 0) ? PAWN : piece[to];
+            int score;
+            if (seeValue[victim] < seeValue[piece[from]] && (score = see(m)) < 0)
+                moveScore[genEnd] = score;
+            else
+                moveScore[genEnd] = 1000000 + (victim * 10) - piece[from];
+	}
 	else
-            g.setScore(history[from][to]);
-        ret.add(g);
+            moveScore[genEnd] = history[from][to];
+	++genEnd;
+    }
+
+
+    /**
+     * Every piece of either color attacking sq, with occ as the occupied squares.
+     * Passing in occ rather than using occupied lets see() uncover pieces hiding behind the ones it has taken off.
+     * 
+     * @param sq - Square being attacked.
+     * @param occ - Occupied squares.
+     * @return bitboard of attackers.
+     */
+    long attackersTo(int sq, long occ) {
+	long diag = pieceBB[LIGHT][BISHOP] | pieceBB[LIGHT][QUEEN] | pieceBB[DARK][BISHOP] | pieceBB[DARK][QUEEN];
+	long straight = pieceBB[LIGHT][ROOK] | pieceBB[LIGHT][QUEEN] | pieceBB[DARK][ROOK] | pieceBB[DARK][QUEEN];
+	return (Project2_Bitboard_Thompson.pawnAttacks[DARK][sq] & pieceBB[LIGHT][PAWN])
+                | (Project2_Bitboard_Thompson.pawnAttacks[LIGHT][sq] & pieceBB[DARK][PAWN])
+                | (Project2_Bitboard_Thompson.knightAttacks[sq] & (pieceBB[LIGHT][KNIGHT] | pieceBB[DARK][KNIGHT]))
+                | (Project2_Bitboard_Thompson.kingAttacks[sq] & (pieceBB[LIGHT][KING] | pieceBB[DARK][KING]))
+                | (Project2_Bitboard_Thompson.bishopAttacks(sq, occ) & diag)
+                | (Project2_Bitboard_Thompson.rookAttacks(sq, occ) & straight);
     }
 
+    /**
+     * Static Exchange Evaluation.
+     * 
+     * Works out what a move wins or loses in material if both sides keep recapturing on the destination square,
+     * always with their least valuable piece, and either side can stop whenever continuing would lose.
+     * No moves are made, we just take pieces off a copy of the occupied bitboard (which also uncovers x-ray
+     * attackers such as a rook behind a rook).  Pins are ignored.
+     * 
+     * @param m - packed move, normally a capture.
+     * @return net material for the side making the move (0 for an even trade).
+     */
+    int see(int m) {
+	int from = Project2_Move_Thompson.getFrom(m);
+	int to = Project2_Move_Thompson.getTo(m);
+	int bits = Project2_Move_Thompson.getBits(m);
+	int gain[] = seeGain;
+	long occ = occupied;
+	long diag = pieceBB[LIGHT][BISHOP] | pieceBB[LIGHT][QUEEN] | pieceBB[DARK][BISHOP] | pieceBB[DARK][QUEEN];
+	long straight = pieceBB[LIGHT][ROOK] | pieceBB[LIGHT][QUEEN] | pieceBB[DARK][ROOK] | pieceBB[DARK][QUEEN];
+	int s = color[from];
+	int attacker = piece[from];
+	int d = 0;
+
+	if ((bits & 4) != 0) {
+            gain[0] = seeValue[PAWN];
+            occ ^= 1L << ((s == LIGHT) ? to + 8 : to - 8);
+	}
+	else
+            gain[0] = (color[to] != EMPTY) ? seeValue[piece[to]] : 0;
+	if ((bits & 32) != 0) {
+            attacker = Project2_Move_Thompson.getPromote(m);
+            gain[0] += seeValue[attacker] - seeValue[PAWN];
+	}
+
+	long fromSet = 1L << from;
+	long attackers = attackersTo(to, occ);
+	do {
+            ++d;
+            s ^= 1;
+            //What we'd be up if the piece we just moved gets taken.
+            gain[d] = seeValue[attacker] - gain[d - 1];
+            occ ^= fromSet;
+            attackers |= (Project2_Bitboard_Thompson.bishopAttacks(to, occ) & diag)
+                    | (Project2_Bitboard_Thompson.rookAttacks(to, occ) & straight);
+            attackers &= occ;
+
+            //Least valuable piece of side s that attacks the square.
+            fromSet = 0;
+            for (int p = PAWN; p <= KING; ++p) {
+                long b = attackers & pieceBB[s][p];
+                if (b != 0) {
+                    fromSet = b & -b;
+                    attacker = p;
+                    break;
+                }
+            }
+	} while (fromSet != 0 && d < gain.length - 1);
+
+	while (--d > 0)
+            gain[d - 1] = -Math.max(-gain[d - 1], gain[d]);
+	return gain[0];
+    }
 
     /** genPromote() is just like genPush(), only it puts 4 moves
      * on the move stack, one for each possible promotion piece 
      * 
-     * @param ret - move stack
      * @param from - move origin
      * @param to - move destination
      * @param bits
      */
     
-    void genPromote(TreeSet ret, int from, int to, int bits) {
-	for (char i = KNIGHT; i <= QUEEN; ++i) {
-		Project2_Move_Thompson g = new Project2_Move_Thompson(from, to, i, (bits | 32));
-            g.setScore(1000000 + (i * 10));
-            ret.add(g);
+    void genPromote(int from, int to, int bits) {
+	for (int i = KNIGHT; i <= QUEEN; ++i) {
+            moveStack[genEnd] = Project2_Move_Thompson.pack(from, to, i, (bits | 32));
+            moveScore[genEnd] = 1000000 + (i * 10);
+            ++genEnd;
 	}
     }
 
@@ -721,118 +1217,147 @@ final public class Project2_Board_Thompson {
     */
     
     boolean makeMove(Project2_Move_Thompson m) {
+        return makeMove(m.toInt());
+    }
+    
+    /**
+     * Same as makeMove(Project2_Move_Thompson) for a packed move.  Use it for moves that didn't come from
+     * gen() or genCaps(), the ones that did are legal and can use makeLegalMove().
+     * 
+     * @param m - packed move to make
+     */
+    boolean makeMove(int m) {
+	/* test to see if a castle move is legal */
+	if ((Project2_Move_Thompson.getBits(m) & 2) != 0 && (inCheck(side) || !castleAllowed(Project2_Move_Thompson.getTo(m))))
+            return false;
+	makeLegalMove(m);
 	
-	/* test to see if a castle move is legal and move the rook
-	   (the king is moved with the usual move code later) */
-	if ((m.bits & 2) != 0) {
-            int from, to;
-
-            //If we are in check, this won't work.
-            if (inCheck(side))
+	/* test for legality (if we can capture
+	   the other guy's king, it's an illegal position and
+	   we need to take the move back) */
+	if (inCheck(xside)) {
+            takeBack();
+            return false;
+	}
+	return true;
+    }
+    
+    /**
+     * The squares between the king and rook are empty and the ones the king crosses aren't attacked.
+     * Whether the king is in check and the castle rights are left to the caller.
+     * 
+     * @param to - the king's destination, G1, C1, G8 or C8.
+     */
+    private boolean castleAllowed(int to) {
+	switch (to) {
+            case 62:
+                return color[F1] == EMPTY && color[G1] == EMPTY && !attack(F1, xside) && !attack(G1, xside);
+            case 58:
+                return color[B1] == EMPTY && color[C1] == EMPTY && color[D1] == EMPTY && !attack(C1, xside) && !attack(D1, xside);
+            case 6:
+                return color[F8] == EMPTY && color[G8] == EMPTY && !attack(F8, xside) && !attack(G8, xside);
+            case 2:
+                return color[B8] == EMPTY && color[C8] == EMPTY && color[D8] == EMPTY && !attack(C8, xside) && !attack(D8, xside);
+            default:  /* shouldn't get here */
                 return false;
-            
-            //Check special attacks as a result of making this move.
-            switch (m.to) {
+	}
+    }
+    
+    /**
+     * Makes a move from gen() or genCaps() without testing it, they only generate legal moves.
+     * 
+     * @param m - packed legal move to make
+     */
+    void makeLegalMove(int m) {
+	int mFrom = Project2_Move_Thompson.getFrom(m);
+	int mTo = Project2_Move_Thompson.getTo(m);
+	int mBits = Project2_Move_Thompson.getBits(m);
+	
+	/* castling moves the rook as well
+	   (the king is moved with the usual move code later) */
+	int rookFrom = -1, rookTo = -1;
+	if ((mBits & 2) != 0) {
+            switch (mTo) {
                 case 62:
-                    if (color[F1] != EMPTY || color[G1] != EMPTY ||
-                            attack(F1, xside) || attack(G1, xside))
-                        return false;
-                    from = H1;
-                    to = F1;
+                    rookFrom = H1;
+                    rookTo = F1;
                     break;
                 case 58:
-                    if (color[B1] != EMPTY || color[C1] != EMPTY || color[D1] != EMPTY ||
-                            attack(C1, xside) || attack(D1, xside))
-                        return false;
-                    from = A1;
-                    to = D1;
+                    rookFrom = A1;
+                    rookTo = D1;
                     break;
                 case 6:
-                    if (color[F8] != EMPTY || color[G8] != EMPTY ||
-                            attack(F8, xside) || attack(G8, xside))
-                        return false;
-                    from = H8;
-                    to = F8;
+                    rookFrom = H8;
+                    rookTo = F8;
                     break;
-                case 2:
-                    if (color[B8] != EMPTY || color[C8] != EMPTY || color[D8] != EMPTY ||
-                            attack(C8, xside) || attack(D8, xside))
-                        return false;
-                    from = A8;
-                    to = D8;
-                    break;
-                default:  /* shouldn't get here */
-                    from = -1;
-                    to = -1;
+                default:
+                    rookFrom = A8;
+                    rookTo = D8;
                     break;
             }
-            
-            //Update relevant color and pieces values.
-            color[to] = color[from];
-            piece[to] = piece[from];
-            color[from] = EMPTY;
-            piece[from] = EMPTY;
 	}
 
 	/* back up information so we can take the move back later. */
 	//Important we do this to keep our ply accurate which we are using in search for move ordering.
-        histDat[hply] = new Project2_HistoryData_Thompson();
 	histDat[hply].m = m;
-	histDat[hply].capture = piece[(int)m.to];
+	histDat[hply].capture = piece[mTo];
 	histDat[hply].castle = castle;
 	histDat[hply].ep = ep;
 	//Fifty move limit
 	histDat[hply].fifty = fifty;
+	histDat[hply].hash = hash;
+	histDat[hply].pawnHash = pawnHash;
+	histDat[hply].saveMaterial(this);
 	++hply;
 
+	//Move the rook if we are castling.
+	if (rookFrom != -1) {
+            removePiece(rookFrom);
+            addPiece(rookTo, side, ROOK);
+	}
+
 	/* update the castle, en passant, and
 	   fifty-move-draw variables */
-	castle &= castleMask[(int)m.from] & castleMask[(int)m.to];
-	if ((m.bits & 8) != 0) {
+	hash ^= hashCastle[castle];
+	if (ep != -1)
+            hash ^= hashEp[ep];
+	castle &= castleMask[mFrom] & castleMask[mTo];
+	if ((mBits & 8) != 0) {
             if (side == LIGHT)
-                ep = m.to + 8;
+                ep = mTo + 8;
             else
-                ep = m.to - 8;
+                ep = mTo - 8;
 	}
 	else
             ep = -1;
+	hash ^= hashCastle[castle];
+	if (ep != -1)
+            hash ^= hashEp[ep];
 	//Update our fifty move checks.
-	if ((m.bits & 17) != 0)
+	if ((mBits & 17) != 0)
             fifty = 0;
 	else
             ++fifty;
 
 	/* move the piece */
-	color[(int)m.to] = side;
-	if ((m.bits & 32) != 0)
-            piece[(int)m.to] = m.promote;
-	else
-            piece[(int)m.to] = piece[(int)m.from];
-	color[(int)m.from] = EMPTY;
-	piece[(int)m.from] = EMPTY;
+	int p = ((mBits & 32) != 0) ? Project2_Move_Thompson.getPromote(m) : piece[mFrom];
+	if (color[mTo] != EMPTY)
+            removePiece(mTo);
+	removePiece(mFrom);
+	addPiece(mTo, side, p);
 
 	/* erase the pawn if this is an en passant move */
-	if ((m.bits & 4) != 0) {
-            if (side == LIGHT) {
-                color[m.to + 8] = EMPTY;
-                piece[m.to + 8] = EMPTY;
-            }
-            else {
-                color[m.to - 8] = EMPTY;
-                piece[m.to - 8] = EMPTY;
-            }
+	if ((mBits & 4) != 0) {
+            if (side == LIGHT)
+                removePiece(mTo + 8);
+            else
+                removePiece(mTo - 8);
         }
 
-	/* switch sides and test for legality (if we can capture
-	   the other guy's king, it's an illegal position and
-	   we need to take the move back) */
+	/* switch sides */
 	side ^= 1;
 	xside ^= 1;
-	if (inCheck(xside)) {
-            takeBack();
-            return false;
-	}
-	return true;
+	hash ^= hashSide;
     }
 
 
@@ -852,30 +1377,25 @@ final public class Project2_Board_Thompson {
 	xside ^= 1;
 	//Step 2:  Using our history values, reset the piece, color an board states.
 	--hply;
-	Project2_Move_Thompson m = histDat[hply].m;
+	int m = histDat[hply].m;
+	int mFrom = Project2_Move_Thompson.getFrom(m);
+	int mTo = Project2_Move_Thompson.getTo(m);
+	int mBits = Project2_Move_Thompson.getBits(m);
 	castle = histDat[hply].castle;
 	ep = histDat[hply].ep;
 	fifty = histDat[hply].fifty;
-	color[(int)m.from] = side;
-	if ((m.bits & 32) != 0)
-            piece[(int)m.from] = PAWN;
-	else
-            piece[(int)m.from] = piece[(int)m.to];
+	int p = ((mBits & 32) != 0) ? PAWN : piece[mTo];
+	removePiece(mTo);
+	addPiece(mFrom, side, p);
 	//Was it a capture?
-	if (histDat[hply].capture == EMPTY) {
-            color[(int)m.to] = EMPTY;
-            piece[(int)m.to] = EMPTY;
-	}
-	else {
-            color[(int)m.to] = xside;
-            piece[(int)m.to] = histDat[hply].capture;
-	}
+	if (histDat[hply].capture != EMPTY)
+            addPiece(mTo, xside, histDat[hply].capture);
 	
 	//Check for our special moves.
-	if ((m.bits & 2) != 0) {
+	if ((mBits & 2) != 0) {
             int from, to;
 
-            switch(m.to) {
+            switch(mTo) {
                 case 62:
                     from = F1;
                     to = H1;
@@ -893,25 +1413,68 @@ final public class Project2_Board_Thompson {
                     to = A8;
                     break;
                 default:  /* shouldn't get here */
-                    from = -1;
-                    to = -1;
-                    break;
+                    return;
             }
-            color[to] = side;
-            piece[to] = ROOK;
-            color[from] = EMPTY;
-            piece[from] = EMPTY;
+            removePiece(from);
+            addPiece(to, side, ROOK);
 	}
-	if ((m.bits & 4) != 0) {
-            if (side == LIGHT) {
-                color[m.to + 8] = xside;
-                piece[m.to + 8] = PAWN;
-            }
-            else {
-                color[m.to - 8] = xside;
-                piece[m.to - 8] = PAWN;
-            }
+	if ((mBits & 4) != 0) {
+            if (side == LIGHT)
+                addPiece(mTo + 8, xside, PAWN);
+            else
+                addPiece(mTo - 8, xside, PAWN);
 	}
+	//The piece moves above XOR their own keys in and out but the saved key covers everything.
+	hash = histDat[hply].hash;
+	pawnHash = histDat[hply].pawnHash;
+	histDat[hply].restoreMaterial(this);
+    }
+    
+    /**
+     * Passes the turn to the other side without moving, for null move pruning.
+     * 
+     * The en passant square goes away and the fifty move count is set to 0 so reps() doesn't look back past the null move
+     * (the position after it can't really have happened before).  Undo with takeBackNull(), not takeBack().
+     */
+    void makeNullMove() {
+	histDat[hply].m = 0;
+	histDat[hply].capture = EMPTY;
+	histDat[hply].castle = castle;
+	histDat[hply].ep = ep;
+	histDat[hply].fifty = fifty;
+	histDat[hply].hash = hash;
+	histDat[hply].pawnHash = pawnHash;
+	++hply;
+	if (ep != -1)
+            hash ^= hashEp[ep];
+	ep = -1;
+	fifty = 0;
+	side ^= 1;
+	xside ^= 1;
+	hash ^= hashSide;
+    }
+    
+    /**
+     * Undoes makeNullMove().
+     */
+    void takeBackNull() {
+	side ^= 1;
+	xside ^= 1;
+	--hply;
+	ep = histDat[hply].ep;
+	fifty = histDat[hply].fifty;
+	hash = histDat[hply].hash;
+    }
+    
+    /**
+     * Does the side have anything besides its king and pawns?  Null move pruning is unsafe without,
+     * since king and pawn endings are where zugzwang (having to move makes things worse) is common.
+     * 
+     * @param s - Side
+     * @return true if s has a knight, bishop, rook or queen.
+     */
+    boolean hasPieces(int s) {
+	return (sideBB[s] & ~pieceBB[s][PAWN] & ~pieceBB[s][KING]) != 0;
     }
     
     
@@ -952,7 +1515,9 @@ final public class Project2_Board_Thompson {
 
     /** reps() 
      * returns the number of times that the current position has been repeated. 
-     * Thanks to John Stanback for this clever algorithm. 
+     * Compares hash keys saved in the history stack, only going back as far as the last
+     * capture or pawn move (fifty) since nothing before that can repeat, and only
+     * looking at positions with the same side to move.
      * 
      * @returns number of  times a position has been repeated.
      * 
@@ -960,9 +1525,6 @@ final public class Project2_Board_Thompson {
      * */
     
     int reps() {
-	int b[] = new int[64];
-	int c = 0;  /* count of squares that are different from
-				   the current position */
 	int r = 0;  /* number of repetitions */
 
 	/* is a repetition impossible? */
@@ -970,18 +1532,9 @@ final public class Project2_Board_Thompson {
 		return 0;
 
 	/* loop through the reversible moves */
-	for (int i = hply - 1; i >= hply - fifty - 1; --i) {
-            if (++b[histDat[i].m.from] == 0)
-                --c;
-            else
-                ++c;
-            if (--b[histDat[i].m.to] == 0)
-                --c;
-            else
-                ++c;
-            if (c == 0)
+	for (int i = hply - 2; i >= 0 && i >= hply - fifty; i -= 2)
+            if (histDat[i].hash == hash)
                 ++r;
-	}
 
 	return r;
     }
@@ -1003,55 +1556,33 @@ final public class Project2_Board_Thompson {
      * 
      * The heuristic also awards a bonus if you have your opponent in check since it seemed to encourage a more aggressive playing style.
      * 
-     *
+     * Material and the piece/square values that don't depend on the rest of the board (pawnMat, pieceMat and pcsq) are kept up to date
+     * by makeMove()/takeBack(), so only pawn structure, rook files, the kings and mobility are worked out here.  The pawn structure
+     * and pawnRank come from evalPawns() before any piece is looked at, so every rook and king sees the whole pawn structure.
      * 
+     * If verifyEval is set, the incremental sums are checked against a full scan of the board on every call.
      * 
      * @return Score for the algorithm relative to the human player.
      */
     public int getScore()
     {   	
+    	if (verifyEval)
+    		verifyMaterial();
     	//mobility bonus
     	int mobilityDark = 0;
     	int mobilityLight = 0;
-    	//position bonus
-    	int positionDark = 0;
-    	int positionLight = 0;
+    	//position bonus, starting from the incremental piece/square sums.
+    	int positionDark = pcsq[DARK];
+    	int positionLight = pcsq[LIGHT];
     	//Opponent in Check Bonuses
     	int checkDark = 0;
     	int checkLight = 0;
-    	/* material score and mobility calculations. */
-    	for (int i = 0; i < 10; ++i) {
-    		pawnRank[LIGHT][i] = 0;
-    		pawnRank[DARK][i] = 7;
-    	}
-    	//Initialize all our arrays to start the board iteration.
-    	pieceMat[LIGHT] = 0;
-    	pieceMat[DARK] = 0;
-    	pawnMat[LIGHT] = 0;
-    	pawnMat[DARK] = 0;
-    	//We need to check every square.
-    	for (int i = 0; i < 64; ++i) {
-    			//Of no use to our h_val, skip it.
-                if (color[i] == EMPTY)
-                    continue;
-                //We found a pawn and since we have to deal with pawnRank, we need to o some more processing.
-                if (piece[i] == PAWN) {
-                	//Add material score for pawn for the color
-                    pawnMat[color[i]] += pieceValue[PAWN];
-                    int f = COL(i) + 1;  /* add 1 because of the extra file in the array */
-                    if (color[i] == LIGHT) {
-                        if (pawnRank[LIGHT][f] < ROW(i))
-                            pawnRank[LIGHT][f] = ROW(i);
-                    }
-                    //Same for dark.
-                    else {
-                        if (pawnRank[DARK][f] > ROW(i))
-                            pawnRank[DARK][f] = ROW(i);
-                        }
-    		}
-    		else
-    			//Not a pawn so just add the piece's material value to our running total.
-                        pieceMat[color[i]] += pieceValue[piece[i]];
+    	evalPawns();
+    	positionLight += pawnScore[LIGHT];
+    	positionDark += pawnScore[DARK];
+    	//We only need to look at occupied squares.
+    	for (long pieces = occupied; pieces != 0; pieces &= pieces - 1) {
+    		int i = Long.numberOfTrailingZeros(pieces);
                 
               /*
                * Start Mobility Check
@@ -1106,20 +1637,11 @@ final public class Project2_Board_Thompson {
                                 }
                         
                     }
-                    //Try to evaluate our current position based on known good states (Piece/Square values).
+                    //The rest of the positional score, on top of the incremental piece/square values.
                     //The previous code returned an evaluation in the range of -3000 to 3000 since we have piece/square values that are negative
                     //I offset all the values originally used by 40 to avoid the change of a negative heuristic value.
                     if (color[i] == LIGHT) {
                         switch (piece[i]) {
-                            case PAWN:
-                                positionLight += (evalLightPawn(i) + 40);
-                                break;
-                            case KNIGHT:
-                            	positionLight += (knightPcsq[i] + 40);
-                                break;
-                            case BISHOP:
-                            	positionLight += (bishopPcsq[i] + 40);
-                                break;
                             case ROOK:
                             	//There were some pawn bonuses awarded in the original code, I left those in tact.
                                 if (pawnRank[LIGHT][COL(i) + 1] == 0) {
@@ -1128,8 +1650,6 @@ final public class Project2_Board_Thompson {
                                     else
                                     	positionLight += ROOK_SEMI_OPEN_FILE_BONUS;
                                 }
-                                if (ROW(i) == 1)
-                                	positionLight += ROOK_ON_SEVENTH_BONUS;
                                 break;
                             case KING:
                                 if (pieceMat[DARK] <= 1200)
@@ -1141,15 +1661,6 @@ final public class Project2_Board_Thompson {
                     }
                     else {
                         switch (piece[i]) {
-                            case PAWN:
-                                positionDark += (evalDarkPawn(i) + 40);
-                                break;
-                            case KNIGHT:
-                            	positionDark += (knightPcsq[flip[i]] + 40);
-                                break;
-                            case BISHOP:
-                            	positionDark+= (bishopPcsq[flip[i]] + 40);
-                                break;
                             case ROOK:
                                 if (pawnRank[DARK][COL(i) + 1] == 7) {
                                     if (pawnRank[LIGHT][COL(i) + 1] == 0)
@@ -1157,8 +1668,6 @@ final public class Project2_Board_Thompson {
                                     else
                                     	positionDark += ROOK_SEMI_OPEN_FILE_BONUS;
                                 }
-                                if (ROW(i) == 6)
-                                	positionDark += ROOK_ON_SEVENTH_BONUS;
                                 break;
                             case KING:
                                 if (pieceMat[LIGHT] <= 1200)
@@ -1221,12 +1730,97 @@ final public class Project2_Board_Thompson {
     	//return the score relative to how good it is for the computer vs the human player.
     	return finalScoreDark - finalScoreLight;
     }
+    
+    /**
+     * Fills in pawnRank and pawnScore for the current pawns, from pawnTable if this pawn structure has been seen before.
+     */
+    void evalPawns() {
+    	int e = pawnTable.probe(pawnHash);
+    	if (e >= 0) {
+    		pawnTable.unpack(e, pawnRank);
+    		pawnScore[LIGHT] = pawnTable.getLight(e);
+    		pawnScore[DARK] = pawnTable.getDark(e);
+    		return;
+    	}
+    	for (int i = 0; i < 10; ++i) {
+    		pawnRank[LIGHT][i] = 0;
+    		pawnRank[DARK][i] = 7;
+    	}
+    	for (long b = pieceBB[LIGHT][PAWN]; b != 0; b &= b - 1) {
+    		int i = Long.numberOfTrailingZeros(b);
+    		int f = COL(i) + 1;  /* add 1 because of the extra file in the array */
+    		if (pawnRank[LIGHT][f] < ROW(i))
+    			pawnRank[LIGHT][f] = ROW(i);
+    	}
+    	for (long b = pieceBB[DARK][PAWN]; b != 0; b &= b - 1) {
+    		int i = Long.numberOfTrailingZeros(b);
+    		int f = COL(i) + 1;
+    		if (pawnRank[DARK][f] > ROW(i))
+    			pawnRank[DARK][f] = ROW(i);
+    	}
+    	pawnScore[LIGHT] = 0;
+    	pawnScore[DARK] = 0;
+    	for (long b = pieceBB[LIGHT][PAWN]; b != 0; b &= b - 1)
+    		pawnScore[LIGHT] += evalLightPawn(Long.numberOfTrailingZeros(b));
+    	for (long b = pieceBB[DARK][PAWN]; b != 0; b &= b - 1)
+    		pawnScore[DARK] += evalDarkPawn(Long.numberOfTrailingZeros(b));
+    	pawnTable.store(pawnHash, pawnScore[LIGHT], pawnScore[DARK], pawnRank);
+    }
+    
+    /**
+     * Piece/square value of a piece, the part of the positional score that only depends on where the piece is.
+     * Kings are left out since their table depends on how much material the opponent has left.
+     * 
+     * @param c - Color of the piece
+     * @param p - Piece type
+     * @param sq - Square
+     * @return value added to pcsq[c].
+     */
+    int pcsqValue(int c, int p, int sq) {
+    	int s = (c == LIGHT) ? sq : flip[sq];
+    	switch (p) {
+    		case PAWN:
+    			return pawnPcsq[s] + 40;
+    		case KNIGHT:
+    			return knightPcsq[s] + 40;
+    		case BISHOP:
+    			return bishopPcsq[s] + 40;
+    		case ROOK:
+    			return (ROW(s) == 1) ? ROOK_ON_SEVENTH_BONUS : 0;
+    		default:
+    			return 0;
+    	}
+    }
+    
+    /**
+     * Full scan version of the incremental material and piece/square sums.
+     * Throws an IllegalStateException if makeMove()/takeBack() have let them drift.
+     */
+    void verifyMaterial() {
+    	int mat[] = new int[2];
+    	int pawns[] = new int[2];
+    	int sum[] = new int[2];
+    	for (int i = 0; i < 64; ++i) {
+    		if (color[i] == EMPTY)
+    			continue;
+    		if (piece[i] == PAWN)
+    			pawns[color[i]] += pieceValue[PAWN];
+    		else
+    			mat[color[i]] += pieceValue[piece[i]];
+    		sum[color[i]] += pcsqValue(color[i], piece[i], i);
+    	}
+    	for (int s = LIGHT; s <= DARK; ++s)
+    		if (mat[s] != pieceMat[s] || pawns[s] != pawnMat[s] || sum[s] != pcsq[s])
+    			throw new IllegalStateException("Incremental evaluation out of step for side " + s + ": material "
+    					+ pieceMat[s] + "/" + mat[s] + ", pawns " + pawnMat[s] + "/" + pawns[s] + ", pcsq " + pcsq[s] + "/" + sum[s]);
+    }
         
 /**
  * 
  * Evaluates a pawn in a given square returning it's calculated value.
  * 
- * Evaluate the pawn using it's location and our piece square table.
+ * Evaluate the pawn's structure (doubled, isolated, backwards, passed).
+ * Its piece square value is part of the incremental pcsq sum.
  * 
  * @param sq - Square we are evaluating.
  * @return - Score of pawn.
@@ -1235,8 +1829,6 @@ final public class Project2_Board_Thompson {
 	int r = 0; /* return value */
 	int f = COL(sq) + 1; /* pawn's file */
 
-	r += pawnPcsq[sq];
-
 	/* if there's a pawn behind this one, it's doubled */
 	if (pawnRank[LIGHT][f] > ROW(sq))
             r -= DOUBLED_PAWN_PENALTY;
@@ -1264,7 +1856,7 @@ final public class Project2_Board_Thompson {
     /**
      * Same thing as our evalLightPawn function.
      * 
-     * Evaluate the pawn using it's location and our piece square table.
+     * Evaluate the pawn's structure, its piece square value is part of the incremental pcsq sum.
      * 
      * 
      * @param sq - Square we are located in
@@ -1274,8 +1866,6 @@ int evalDarkPawn(int sq) {
 	int r = 0;  /* the value to return */
 	int f = COL(sq) + 1;  /* the pawn's file */
 
-	r += pawnPcsq[flip[sq]];
-
 	/* if there's a pawn behind this one, it's doubled */
 	if (pawnRank[DARK][f] < ROW(sq))
             r -= DOUBLED_PAWN_PENALTY;
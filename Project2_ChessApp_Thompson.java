@@ -25,6 +25,12 @@ import javax.swing.*;
  * 3.  Added drop-down to select maximum depth for our search, ranging from 1-32.
  * 4.  Added drop-down list to select Search Algorithm and pass that to the boardView for our searcher.
  * 4.  Added drop-down to select Randomization Algorithm if random move is selected.
+ * 5.  Added PVS to the search algorithm drop-down.
+ * 6.  Added Young Brothers Wait (parallel Alpha Beta) to the search algorithm drop-down.
+ * 7.  Added a Move Now button that stops the computer's search.
+ * 8.  Added game clocks (total time plus increment) to the time drop-down.
+ * 9.  Added a Ponder check box to let the computer think on the human's time.
+ * 10. Added a Threads drop-down, defaulting to one thread per processor.
  * 
  */
 
@@ -39,6 +45,8 @@ public class Project2_ChessApp_Thompson extends JApplet {
     
     //Choices for length of computers turn.
     private final int[] playTime = {1000, 3000, 5000, 10000, 20000, 30000, 60000};
+    //Game clocks after the fixed times: total time and increment per move.
+    private final long[][] gameClock = {{60000, 1000}, {300000, 0}, {300000, 3000}, {900000, 10000}};
     
     public void init() {
         super.init();
@@ -58,6 +66,15 @@ public class Project2_ChessApp_Thompson extends JApplet {
         });
         p1.add(resetButton);    
         
+        //Stop the computer's search and have it play the best move it has so far.
+        JButton moveNowButton = new JButton ("Move Now");
+        moveNowButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                brdView.moveNow();
+            }
+        });
+        p1.add(moveNowButton);
+        
        
 
         /*
@@ -65,14 +82,18 @@ public class Project2_ChessApp_Thompson extends JApplet {
          * 
          */
         p1.add(new JLabel("Time Limit: "));
-        String[] timeStrings = { "1 second", "3 seconds", "5 seconds", "10 seconds", "20 seconds", "30 seconds", "1 minute" };
+        String[] timeStrings = { "1 second", "3 seconds", "5 seconds", "10 seconds", "20 seconds", "30 seconds", "1 minute",
+                "Game 1 min + 1 s", "Game 5 min", "Game 5 min + 3 s", "Game 15 min + 10 s" };
         JComboBox timeBox = new JComboBox(timeStrings);
         timeBox.setSelectedIndex(3);
         timeBox.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 JComboBox cb = (JComboBox)e.getSource();
                 int selection = cb.getSelectedIndex();
-                brdView.setMaxTime(playTime[selection]);
+                if (selection < playTime.length)
+                    brdView.setMaxTime(playTime[selection]);
+                else
+                    brdView.setGameClock(gameClock[selection - playTime.length][0], gameClock[selection - playTime.length][1]);
             }
         });
         p1.add(timeBox);
@@ -98,15 +119,16 @@ public class Project2_ChessApp_Thompson extends JApplet {
         
         /*
          * 
-         * We have three move options:
+         * We have four move options:
          * 1.  Random move
          * 2.  Minimax
          * 3.  Alpha Beta
+         * 4.  Principal Variation Search
          * 
          * put those in a combo-box and then when one is selected, update our BoardView.
          * 
          */
-        String[] moveAlgorithmStrings = {"Random Move", "Minimax", "Alpha Beta"};
+        String[] moveAlgorithmStrings = {"Random Move", "Minimax", "Alpha Beta", "PVS", "YBW"};
         JComboBox algo = new JComboBox(moveAlgorithmStrings);
         algo.setSelectedIndex(2);
         algo.addActionListener(new ActionListener() {
@@ -144,12 +166,41 @@ public class Project2_ChessApp_Thompson extends JApplet {
         });
         p3.add(random);
         
+        //Let the computer search the reply it expects while the human thinks.
+        JCheckBox ponderBox = new JCheckBox("Ponder");
+        ponderBox.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                brdView.setPonder(((JCheckBox) e.getSource()).isSelected());
+            }
+        });
+        p3.add(ponderBox);
+        
+        /*
+         * Threads for the search: Lazy SMP for Alpha Beta and PVS, the pools for Minimax and YBW.
+         * 
+         */
+        p3.add(new JLabel("Threads: "));
+        int processors = Runtime.getRuntime().availableProcessors();
+        String[] threadStrings = new String[Math.max(processors, 1)];
+        for (int i = 0; i < threadStrings.length; ++i)
+            threadStrings[i] = Integer.toString(i + 1);
+        JComboBox threadBox = new JComboBox(threadStrings);
+        threadBox.setSelectedIndex(threadStrings.length - 1);
+        threadBox.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                JComboBox cb = (JComboBox)e.getSource();
+                brdView.setThreads(cb.getSelectedIndex() + 1);
+            }
+        });
+        p3.add(threadBox);
+        
        
                 
         JPanel p2 = new JPanel();
         brdView = new Project2_BoardView_Thompson(this, board);
         brdView.setMaxDepth(depthBox.getSelectedIndex());
         brdView.setMaxTime(playTime[timeBox.getSelectedIndex()]);
+        brdView.setThreads(threadBox.getSelectedIndex() + 1);
         p2.add(brdView);
 
         Container cp = getContentPane();
@@ -13,14 +13,62 @@
  * 
  * I wouldn't have made this a class but the original author did.
  * The object are used to keep track of our move history for principal variation as well as the ability to undo the move.
+ * The board allocates the whole stack up front and reuses the entries, m is a packed move (see Project2_Move_Thompson.pack()).
  * 
  * 
  */
 
 final class Project2_HistoryData_Thompson {
-	Project2_Move_Thompson m;
+	int m;
     int capture;
     int castle;
     int ep;
     int fifty;
+    /**
+     * Hash key and pawn key of the position before the move was made.
+     */
+    long hash;
+    long pawnHash;
+    /**
+     * Material and piece/square sums before the move was made.
+     */
+    int pieceMat[] = new int[2];
+    int pawnMat[] = new int[2];
+    int pcsq[] = new int[2];
+    
+    /**
+     * Copies another entry, used when a board is copied.
+     */
+    void copy(Project2_HistoryData_Thompson h) {
+    	m = h.m;
+    	capture = h.capture;
+    	castle = h.castle;
+    	ep = h.ep;
+    	fifty = h.fifty;
+    	hash = h.hash;
+    	pawnHash = h.pawnHash;
+    	for (int s = 0; s < 2; ++s) {
+    		pieceMat[s] = h.pieceMat[s];
+    		pawnMat[s] = h.pawnMat[s];
+    		pcsq[s] = h.pcsq[s];
+    	}
+    }
+    
+    void saveMaterial(Project2_Board_Thompson b) {
+    	pieceMat[0] = b.pieceMat[0];
+    	pieceMat[1] = b.pieceMat[1];
+    	pawnMat[0] = b.pawnMat[0];
+    	pawnMat[1] = b.pawnMat[1];
+    	pcsq[0] = b.pcsq[0];
+    	pcsq[1] = b.pcsq[1];
+    }
+    
+    void restoreMaterial(Project2_Board_Thompson b) {
+    	b.pieceMat[0] = pieceMat[0];
+    	b.pieceMat[1] = pieceMat[1];
+    	b.pawnMat[0] = pawnMat[0];
+    	b.pawnMat[1] = pawnMat[1];
+    	b.pcsq[0] = pcsq[0];
+    	b.pcsq[1] = pcsq[1];
+    }
 }
@@ -10,7 +10,9 @@
  * 
  * @modified Kurtis Thompson
  * 
- * No modifications were made to this class.
+ * Moves inside the search are packed into a single int so generating them allocates nothing:
+ * bits 0-5 from, 6-11 to, 12-14 promote, 15-20 bits.  The static helpers below pack and unpack them,
+ * and this class is only used to hand moves to and from the GUI.
  * 
  * @since 2011.0411.
  * 
@@ -34,6 +36,63 @@ final class Project2_Move_Thompson implements Comparable {
         this.bits = bits;
     }
     
+    /**
+     * Constructor for a packed move.
+     * 
+     * @param m - packed move.
+     */
+    Project2_Move_Thompson(int m) {
+        this(getFrom(m), getTo(m), getPromote(m), getBits(m));
+    }
+    
+    /**
+     * Packs a move into an int.
+     * 
+     * @param from - origin of piece we are moving
+     * @param to - destination of piece we are moving
+     * @param promote - promotion of piece
+     * @param bits - bits of piece.
+     * @return packed move, 0 is never a real move.
+     */
+    static int pack(int from, int to, int promote, int bits) {
+        return from | (to << 6) | (promote << 12) | (bits << 15);
+    }
+    
+    static int getFrom(int m) {
+        return m & 63;
+    }
+    
+    static int getTo(int m) {
+        return (m >>> 6) & 63;
+    }
+    
+    static int getPromote(int m) {
+        return (m >>> 12) & 7;
+    }
+    
+    static int getBits(int m) {
+        return (m >>> 15) & 63;
+    }
+    
+    /**
+     * Packed version of this move.
+     * 
+     * @return packed move.
+     */
+    int toInt() {
+        return pack(from, to, promote, bits);
+    }
+    
+    /**
+     * String version of a packed move.
+     * 
+     * @param m - packed move.
+     * @return move in coordinate notation.
+     */
+    static String toString(int m) {
+        return new Project2_Move_Thompson(m).toString();
+    }
+    
     /**
      * Get the value of the move
      * @return score of move.
@@ -0,0 +1,123 @@
+//
+//  PawnHashTable.java
+//  ChessApp
+//
+
+/**
+ * Pawn structure cache.
+ *
+ * Doubled, isolated, backwards and passed pawns only depend on where the pawns are, and most moves in the search
+ * don't move a pawn, so the pawn part of the evaluation is looked up here by the board's pawn key instead of being
+ * worked out again at every leaf.
+ *
+ * Each entry holds the pawn structure score for both sides and the pawnRank array packed into a long, 3 bits a file,
+ * since the rook file bonuses and the king safety terms still need it.  The table is direct mapped and belongs to
+ * one board, so there is no locking.
+ *
+ * @version 2011.0423
+ * @since 1.6
+ *
+ */
+final class Project2_PawnHashTable_Thompson {
+
+	/**
+	 * Default number of entries, must be a power of two.
+	 */
+	final static int DEFAULT_SIZE = 1 << 14;
+
+	private final long keys[];
+	private final long ranks[];
+	private final int lightScore[];
+	private final int darkScore[];
+	private final boolean used[];
+	private final int mask;
+
+	/**
+	 * Statistics, reset by the search.
+	 */
+	int probes = 0;
+	int hits = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param size - Number of entries, a power of two.
+	 */
+	Project2_PawnHashTable_Thompson(int size) {
+		keys = new long[size];
+		ranks = new long[size];
+		lightScore = new int[size];
+		darkScore = new int[size];
+		used = new boolean[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Looks up a pawn structure.
+	 *
+	 * @param key - Pawn key of the position.
+	 * @return index of the entry, or -1 if it isn't in the table.
+	 */
+	int probe(long key) {
+		++probes;
+		int i = (int) key & mask;
+		if (used[i] && keys[i] == key) {
+			++hits;
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Stores a pawn structure, always replacing whatever was in the slot.
+	 *
+	 * @param key - Pawn key of the position.
+	 * @param light - Pawn structure score for light.
+	 * @param dark - Pawn structure score for dark.
+	 * @param pawnRank - The board's pawnRank array.
+	 */
+	void store(long key, int light, int dark, int pawnRank[][]) {
+		int i = (int) key & mask;
+		keys[i] = key;
+		lightScore[i] = light;
+		darkScore[i] = dark;
+		ranks[i] = pack(pawnRank);
+		used[i] = true;
+	}
+
+	int getLight(int i) {
+		return lightScore[i];
+	}
+
+	int getDark(int i) {
+		return darkScore[i];
+	}
+
+	/**
+	 * Copies an entry's file information back into pawnRank.
+	 */
+	void unpack(int i, int pawnRank[][]) {
+		long r = ranks[i];
+		for (int s = 0; s < 2; ++s)
+			for (int f = 0; f < 10; ++f) {
+				pawnRank[s][f] = (int) (r & 7);
+				r >>>= 3;
+			}
+	}
+
+	/**
+	 * Empties the table.
+	 */
+	void clear() {
+		for (int i = 0; i < used.length; ++i)
+			used[i] = false;
+	}
+
+	private static long pack(int pawnRank[][]) {
+		long r = 0;
+		for (int s = 1; s >= 0; --s)
+			for (int f = 9; f >= 0; --f)
+				r = (r << 3) | pawnRank[s][f];
+		return r;
+	}
+}
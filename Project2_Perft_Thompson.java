@@ -0,0 +1,267 @@
+//
+//  Perft.java
+//  ChessApp
+//
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Perft (performance test) for the move generator.
+ *
+ * Counts the leaf nodes of the full legal move tree to a fixed depth using only gen(), makeLegalMove() and takeBack(),
+ * so the counts can be checked against the well known published values and the speed of the move generator can be
+ * measured without the search or the evaluation getting in the way.
+ *
+ * The divide breakdown gives the count below each root move, which is how a wrong count is tracked down to the move
+ * that is generated (or made) incorrectly.  gen() only generates legal moves, so the count one ply from the leaves
+ * is just the length of the move list.  Each root move is counted on its own copy of the board in a ForkJoinPool.
+ * An optional hash table remembers the count of every position at every depth so transpositions are only counted once.
+ *
+ * -verify checks the board's incremental material and piece/square sums against a full scan (verifyMaterial()) at
+ * every node, leaves included, so it doesn't count the last ply from the move list.  It also sets the boards'
+ * verifyEval.  It is much slower, and is meant to be run with -suite after changing makeMove() or takeBack().
+ *
+ * Usage:
+ *
+ *   java Project2_Perft_Thompson [-fen "FEN"] [-threads n] [-hash mb] [-verify] depth
+ *   java Project2_Perft_Thompson -suite [-threads n] [-hash mb] [-verify]
+ *
+ * @version 2011.0423
+ * @since 1.6
+ *
+ */
+final class Project2_Perft_Thompson {
+
+	final static String START_FEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+	/**
+	 * Positions with known counts: FEN, depth, nodes.
+	 */
+	final static String SUITE[][] = {
+		{ START_FEN, "5", "4865609" },
+		{ "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1", "4", "4085603" },
+		{ "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1", "5", "674624" },
+		{ "r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1", "4", "422333" },
+		{ "rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8", "4", "2103487" }
+	};
+
+	/**
+	 * Optional hash table.  The key of an entry is the board's hash XORed with a number for the depth, stored XORed
+	 * with the count the same way the transposition table does it, so the threads can share it without locks.
+	 */
+	private long hashKeys[];
+	private long hashCounts[];
+	private int hashMask;
+	private final static long depthKey[] = new long[Project2_Search_Thompson.MAX_PLY];
+
+	static {
+		java.util.Random r = new java.util.Random(20110423L ^ 0x5EEDL);
+		for (int i = 0; i < depthKey.length; ++i)
+			depthKey[i] = r.nextLong();
+	}
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * Check the incremental evaluation sums at every node, see -verify.
+	 */
+	boolean verify;
+
+	/**
+	 * Constructor
+	 *
+	 * @param threads - Number of worker threads for the root moves.
+	 * @param hashMb - Size of the perft hash table in megabytes, 0 for none.
+	 */
+	Project2_Perft_Thompson(int threads, int hashMb) {
+		pool = new ForkJoinPool(Math.max(1, threads));
+		if (hashMb > 0) {
+			int size = 1;
+			while ((long) size * 32 <= ((long) hashMb << 20) && size < (1 << 30))
+				size *= 2;
+			hashKeys = new long[size];
+			hashCounts = new long[size];
+			hashMask = size - 1;
+		}
+	}
+
+	/**
+	 * Counts the leaf nodes below the board's position.
+	 *
+	 * @param b - Board, left as it was found.
+	 * @param ply - Ply used for the board's move stack.
+	 * @param depth - Depth still to go.
+	 * @return Number of leaf nodes.
+	 */
+	long perft(Project2_Board_Thompson b, int ply, int depth) {
+		if (verify)
+			b.verifyMaterial();
+		if (depth == 0)
+			return 1;
+		long key = 0;
+		if (hashKeys != null && depth > 1) {
+			key = b.hash ^ depthKey[depth];
+			int i = (int) key & hashMask;
+			long n = hashCounts[i];
+			if ((hashKeys[i] ^ n) == key)
+				return n;
+		}
+		long n = 0;
+		b.gen(ply);
+		if (depth == 1 && !verify)
+			n = b.firstMove[ply + 1] - b.firstMove[ply];
+		else
+			for (int i = b.firstMove[ply]; i < b.firstMove[ply + 1]; ++i) {
+				b.makeLegalMove(b.moveStack[i]);
+				n += perft(b, ply + 1, depth - 1);
+				b.takeBack();
+			}
+		if (key != 0) {
+			int i = (int) key & hashMask;
+			hashCounts[i] = n;
+			hashKeys[i] = key ^ n;
+		}
+		return n;
+	}
+
+	/**
+	 * Counts one root move's subtree on a copy of the board.
+	 */
+	private final class RootMove extends RecursiveTask<Long> {
+		private static final long serialVersionUID = 1L;
+		private final Project2_Board_Thompson board;
+		private final int depth;
+
+		RootMove(Project2_Board_Thompson root, int m, int depth) {
+			board = new Project2_Board_Thompson(root);
+			board.makeLegalMove(m);
+			this.depth = depth;
+		}
+
+		protected Long compute() {
+			return perft(board, 0, depth);
+		}
+	}
+
+	/**
+	 * Counts the nodes below each legal root move in parallel.
+	 *
+	 * @param b - Board, not changed.
+	 * @param depth - Depth, 1 to MAX_PLY - 1.
+	 * @param moves - Filled in with the legal root moves.
+	 * @param counts - Filled in with the count for each root move.
+	 * @return Total number of leaf nodes.
+	 */
+	long divide(Project2_Board_Thompson b, int depth, List<Integer> moves, List<Long> counts) {
+		if (depth < 1 || depth >= Project2_Search_Thompson.MAX_PLY)
+			throw new IllegalArgumentException("Perft depth must be between 1 and " + (Project2_Search_Thompson.MAX_PLY - 1));
+		List<RootMove> tasks = new ArrayList<RootMove>();
+		b.gen(0);
+		for (int i = b.firstMove[0]; i < b.firstMove[1]; ++i) {
+			int m = b.moveStack[i];
+			moves.add(m);
+			tasks.add(new RootMove(b, m, depth - 1));
+		}
+		for (RootMove t : tasks)
+			pool.execute(t);
+		long total = 0;
+		for (RootMove t : tasks) {
+			long n = t.join();
+			counts.add(n);
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Runs divide and prints the breakdown, the total and the speed.
+	 *
+	 * @return Total number of leaf nodes.
+	 */
+	long run(Project2_Board_Thompson b, int depth, boolean print) {
+		List<Integer> moves = new ArrayList<Integer>();
+		List<Long> counts = new ArrayList<Long>();
+		long start = System.nanoTime();
+		long total = divide(b, depth, moves, counts);
+		long time = Math.max(1, System.nanoTime() - start);
+		if (print)
+			for (int i = 0; i < moves.size(); ++i)
+				System.out.println(Project2_Move_Thompson.toString(moves.get(i)) + ": " + counts.get(i));
+		System.out.println("Depth " + depth + "  nodes " + total + "  time " + (time / 1000000) + " ms  nps "
+				+ (long) (total * 1e9 / time));
+		return total;
+	}
+
+	void shutdown() {
+		pool.shutdown();
+	}
+
+	public static void main(String args[]) {
+		String fen = START_FEN;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int hashMb = 0;
+		int depth = -1;
+		boolean suite = false;
+		boolean verify = false;
+		try {
+			for (int i = 0; i < args.length; ++i) {
+				if (args[i].equals("-fen"))
+					fen = args[++i];
+				else if (args[i].equals("-threads"))
+					threads = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-hash"))
+					hashMb = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-suite"))
+					suite = true;
+				else if (args[i].equals("-verify"))
+					verify = true;
+				else
+					depth = Integer.parseInt(args[i]);
+			}
+		}
+		catch (RuntimeException e) {
+			depth = -1;
+			suite = false;
+		}
+		if (depth < 0 && !suite) {
+			System.out.println("Usage: java Project2_Perft_Thompson [-fen \"FEN\"] [-threads n] [-hash mb] [-verify] depth");
+			System.out.println("       java Project2_Perft_Thompson -suite [-threads n] [-hash mb] [-verify]");
+			return;
+		}
+
+		Project2_Perft_Thompson perft = new Project2_Perft_Thompson(threads, hashMb);
+		perft.verify = verify;
+		try {
+			if (suite) {
+				int failed = 0;
+				for (int i = 0; i < SUITE.length; ++i) {
+					Project2_Board_Thompson b = new Project2_Board_Thompson();
+					b.setFen(SUITE[i][0]);
+					b.verifyEval = verify;
+					System.out.println(SUITE[i][0]);
+					long n = perft.run(b, Integer.parseInt(SUITE[i][1]), false);
+					boolean ok = n == Long.parseLong(SUITE[i][2]);
+					if (!ok)
+						++failed;
+					System.out.println(ok ? "OK" : "FAILED, expected " + SUITE[i][2]);
+				}
+				System.out.println(failed == 0 ? "All positions OK" : failed + " positions FAILED");
+			}
+			else {
+				Project2_Board_Thompson b = new Project2_Board_Thompson();
+				b.setFen(fen);
+				b.verifyEval = verify;
+				perft.run(b, depth, true);
+			}
+		}
+		catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+		}
+		finally {
+			perft.shutdown();
+		}
+	}
+}
@@ -25,6 +25,25 @@ import java.util.*;
  * 2.  Added SearchMaxAB/SearchMinAB for minimax alpha beta pruning earch.
  * 3.  Added SearchMax/SearchMin methods for minimax only search.
  * 4.  Removed Quisence search, wasn't a requirement and didn't seem to be worth the reduced plies.
+ *     (Since put back for Alpha Beta, see quiesce(), and can be switched off with setQuiescence()).
+ * 5.  Moves are packed ints in the board's per-ply move stack and are picked best-first with pickMove(), no TreeSets.
+ * 6.  Alpha Beta uses a transposition table (see Project2_TranspositionTable_Thompson) for cutoffs and move ordering.
+ * 7.  Added searchPVS(), a negamax principal variation search (SEARCH == 3).
+ * 8.  Alpha Beta and PVS use aspiration windows around the previous iteration's score, see aspirate().
+ * 9.  Alpha Beta and PVS order quiet moves with killers, countermoves and continuation history, see orderQuiets().
+ * 10. Alpha Beta and PVS use null move pruning, see nullMoveAllowed().
+ * 11. Alpha Beta and PVS reduce and prune late quiet moves, see lateReduction() and latePrune().
+ * 12. Alpha Beta and PVS use futility pruning and razoring near the horizon, see frontierNode().
+ * 13. Alpha Beta and PVS can search on several threads sharing the transposition table (Lazy SMP), see setThreads().
+ * 14. Added Young Brothers Wait (SEARCH == 4), a parallel Alpha Beta without the table, see Project2_YBWSearch_Thompson.
+ * 15. Minimax splits the root moves across threads when setThreads() is more than 1, see parallelMax().
+ * 16. The search stops on a flag checked at every node rather than by throwing an exception, so it can be
+ *     stopped from another thread (see stop()) or after a number of nodes (see setNodeLimit()).
+ * 17. think() can take a Project2_TimeManager_Thompson for a game clock, which skips iterations that can't finish
+ *     and gives more time when the best move keeps changing.
+ * 18. Minimax, Alpha Beta and PVS can ponder on the opponent's predicted reply while the opponent thinks, see startPonder().
+ * 19. The history, killers, countermoves, PV and hash table carry over from one move to the next in a game, see
+ *     ageSearchState(), and are only forgotten by newGame().
  * 
  * 
  * @author Kurtis Thompson
@@ -47,6 +66,272 @@ public class Project2_Search_Thompson {
 	 */
     public Project2_Search_Thompson(Project2_Board_Thompson b) {
         board = b;
+        hashTable = new Project2_TranspositionTable_Thompson(DEFAULT_HASH_MB);
+    }
+    
+    /**
+     * Constructor for a helper thread's searcher, its board is set by prepareHelper() before each search.
+     * 
+     * @param table - Transposition table shared with the main searcher.
+     */
+    private Project2_Search_Thompson(Project2_TranspositionTable_Thompson table) {
+        hashTable = table;
+    }
+    
+    /**
+     * Turns the quiescence search on or off for Alpha Beta.  Minimax always stops at the horizon.
+     * 
+     * @param on - true to search captures at the horizon.
+     */
+    public void setQuiescence(boolean on) {
+        quiescence = on;
+    }
+    
+    /**
+     * Sets the starting half width of the aspiration window used by Alpha Beta and PVS.
+     * 
+     * @param width - Half width in centipawns, 0 searches every iteration with the full window.
+     */
+    public void setAspirationWindow(int width) {
+        aspirationWindow = Math.max(0, width);
+    }
+    
+    /**
+     * Turns null move pruning on or off for Alpha Beta and PVS.
+     * 
+     * @param on - true to try passing the turn before searching the moves.
+     * @param verify - true to confirm deep null move cutoffs with a reduced search (guards against zugzwang).
+     */
+    public void setNullMove(boolean on, boolean verify) {
+        nullMove = on;
+        nullVerify = verify;
+    }
+    
+    /**
+     * Turns late move reductions and late move pruning on or off for Alpha Beta and PVS.
+     * 
+     * @param reduce - true to search late quiet moves to a reduced depth first.
+     * @param prune - true to skip late quiet moves near the horizon.
+     */
+    public void setLateMoves(boolean reduce, boolean prune) {
+        lateReductions = reduce;
+        latePruning = prune;
+    }
+    
+    /**
+     * Sets up futility pruning for Alpha Beta and PVS.
+     * 
+     * @param on - true to prune quiet moves in hopeless frontier nodes.
+     * @param margins - margins for depth 1, 2 and 3 (extended futility) in centipawns.
+     */
+    public void setFutility(boolean on, int margins[]) {
+        futility = on;
+        for (int d = 1; d <= FRONTIER_DEPTH && d <= margins.length; ++d)
+            futilityMargin[d] = margins[d - 1];
+    }
+    
+    /**
+     * Sets up razoring for Alpha Beta and PVS.
+     * 
+     * @param on - true to drop hopeless depth 1 and 2 nodes into the quiescence search.
+     * @param margins - margins for depth 1 and 2 in centipawns.
+     */
+    public void setRazoring(boolean on, int margins[]) {
+        razoring = on;
+        for (int d = 1; d <= RAZOR_DEPTH && d <= margins.length; ++d)
+            razorMargin[d] = margins[d - 1];
+    }
+    
+    /**
+     * Sets the number of threads Alpha Beta and PVS search with.
+     * 
+     * The extra threads are helpers (Lazy SMP): each searches the same root on its own copy of the board with
+     * its own killers and history, sharing only the transposition table.  They fill the table with results the
+     * main thread then finds, and the main thread's result is the one that is played.
+     * 
+     * Young Brothers Wait and Minimax use the same number of threads for their pools.
+     * 
+     * @param n - Number of threads including the one calling think(), 1 for none.
+     */
+    public void setThreads(int n) {
+        threads = Math.max(1, n);
+    }
+    
+    /**
+     * Stops the search, from any thread.  think() returns as soon as every node on the current line has taken
+     * back its move (see getStopLatency()), with the best move of the last iteration that finished.
+     * 
+     * A stop() before think() has started isn't lost: think() finishes the first iteration, so there is a move
+     * to play, and returns.  clearStop() forgets it, call that when the search is scheduled.
+     */
+    public synchronized void stop() {
+        if (stopRequested == 0)
+            stopRequested = System.nanoTime();
+        stop = true;
+        ++stopCount;
+        Project2_YBWSearch_Thompson y = ybw;
+        if (y != null)
+            y.stop();
+    }
+    
+    /**
+     * Forgets any stop() so far.  Call it when a search is scheduled, before starting the thread that will call
+     * think(), so a stop() in between still stops that search.
+     */
+    public synchronized void clearStop() {
+        stopRequested = 0;
+        stop = false;
+    }
+    
+    /**
+     * Sets a limit on the number of nodes think() searches, alongside the time limit.
+     * 
+     * @param n - Node limit, 0 for none.
+     */
+    public void setNodeLimit(long n) {
+        nodeLimit = Math.max(0, n);
+    }
+    
+    /**
+     * Time from the last stop() call to think() returning, in nanoseconds, 0 if stop() wasn't called.
+     */
+    public long getStopLatency() {
+        return stopLatency;
+    }
+    
+    /**
+     * Starts pondering: searching, on its own thread, the position after the reply the last search expects
+     * (the second move of its PV) with no time limit, while the opponent thinks.  Call it after the best move
+     * has been made on the board, then ponderHit() once the opponent has moved.
+     * 
+     * Pondering uses a copy of the board, so the board can be used while the search runs.  The searcher's board
+     * field is switched to the copy here, before the ponder thread starts, and back in waitPonder() after it has
+     * finished, both on the caller's thread, so the ponder thread never changes it.
+     * Young Brothers Wait keeps no PV so it doesn't ponder.
+     * 
+     * startPonder(), ponderHit() and stopPonder() can be called from different threads (the Thinker and the GUI),
+     * they take turns on ponderLock.
+     * 
+     * @param output - Passed on to think().
+     * @param timeManager - Time for the move if the opponent plays the expected reply, started by ponderHit().
+     * @param maxDepth - maximum depth we should search
+     * @return true if pondering started, false if there was no reply to ponder on.
+     */
+    boolean startPonder(final int output, final Project2_TimeManager_Thompson timeManager, final int maxDepth) {
+      synchronized (ponderLock) {
+        stopPonder();
+        if (board.SEARCH < 1 || board.SEARCH > 3 || pvLength[0] < 2)
+            return false;
+        final int reply = pv[0][1];
+        ponderBoard = new Project2_Board_Thompson(board);
+        boolean found = false;
+        ponderBoard.gen(0);
+        for (int i = ponderBoard.firstMove[0]; i < ponderBoard.firstMove[1] && !found; ++i)
+            found = ponderBoard.moveStack[i] == reply;
+        if (!found || !ponderBoard.makeMove(reply)) {
+            ponderBoard = null;
+            return false;
+        }
+        synchronized (this) {
+            ponderHash = ponderBoard.hash;
+            pondering = true;
+            this.timeManager = null;
+            stopRequested = 0;
+            stop = false;
+        }
+        if (output > 0)
+            System.out.println("Pondering on " + Project2_Move_Thompson.toString(reply));
+        realBoard = board;
+        board = ponderBoard;
+        ponderThread = new Thread("Ponder") {
+            public void run() {
+                ponder(output, timeManager, maxDepth);
+            }
+        };
+        ponderThread.setDaemon(true);
+        ponderThread.start();
+        return true;
+      }
+    }
+    
+    /**
+     * Called when the opponent has moved, with the board's hash after the move.  If the opponent played the
+     * expected reply the ponder search carries on, with everything it has found so far, and its time limit
+     * starts now.  Otherwise it is stopped.  Either way this waits for it to finish.
+     * 
+     * @param hash - Hash of the position now on the board.
+     * @return true if it was a ponder hit and getBest() has the move to play, false if think() still has to be called.
+     */
+    boolean ponderHit(long hash) {
+      synchronized (ponderLock) {
+        if (ponderThread == null)
+            return false;
+        boolean hit = hash == ponderHash;
+        int stops = -1;
+        synchronized (this) {
+            if (!hit) {
+                stop();
+                stops = stopCount;
+            }
+            else if (pondering) {
+                pondering = false;
+                //If think() hasn't started yet it sees pondering is over and starts the clock itself.
+                if (timeManager != null) {
+                    startTime = timeManager.restart();
+                    stopTime = timeManager.getHardStop();
+                }
+            }
+        }
+        waitPonder();
+        //The stop was only for the ponder search, forget it unless someone else has asked for one since.
+        synchronized (this) {
+            if (stops == stopCount)
+                clearStop();
+        }
+        if (hit)
+            ++ponderHits;
+        System.out.println(hit ? "Ponder hit (" + ponderHits + " so far)" : "Ponder miss");
+        return hit;
+      }
+    }
+    
+    /**
+     * Stops pondering, if it was, and waits for the ponder search to finish.
+     */
+    void stopPonder() {
+      synchronized (ponderLock) {
+        if (ponderThread == null)
+            return;
+        stop();
+        waitPonder();
+      }
+    }
+    
+    /**
+     * Sets the size of the transposition table.  Resizing clears it.
+     * 
+     * @param mb - Size in megabytes, 0 turns the table off.
+     */
+    public void setHashSize(int mb) {
+        if (mb <= 0)
+            hashTable = null;
+        else if (hashTable == null)
+            hashTable = new Project2_TranspositionTable_Thompson(mb);
+        else
+            hashTable.resize(mb);
+    }
+    
+    /**
+     * Stops the Young Brothers Wait and Minimax threads, if they were started.  The searcher can still be used afterwards.
+     */
+    void shutdown() {
+        stopPonder();
+        if (ybw != null)
+            ybw.shutdown();
+        ybw = null;
+        if (minimaxPool != null)
+            minimaxPool.shutdown();
+        minimaxPool = null;
     }
     
     /**
@@ -57,7 +342,7 @@ public class Project2_Search_Thompson {
      */
     public Project2_Move_Thompson getBest() {
     	//return getRandom();
-        return pv[0][0];
+        return new Project2_Move_Thompson(pv[0][0]);
     }
     
     
@@ -82,35 +367,87 @@ public class Project2_Search_Thompson {
      * @param maxTime - maximum time we can search
      * @param maxDepth - maximum depth we should search
      * 
-     * We implement the time limit by checking how much time has elapsed per 1024 nodes and then throwing the exception to end our search if maximum time has elapsed.)
+     * The same as think(output, Project2_TimeManager_Thompson.fixed(maxTime), maxDepth).
+     */
+    void think(int output, int maxTime, int maxDepth) {
+        think(output, Project2_TimeManager_Thompson.fixed(maxTime), maxDepth);
+    }
+
+    /**
+     * The ponder thread: think() on the position after the expected reply.  startPonder() has already set the
+     * board to the ponder board, swapped rather than copied into so the Lazy SMP helpers and Minimax workers copy
+     * the right one.
+     */
+    private void ponder(int output, Project2_TimeManager_Thompson timeManager, int maxDepth) {
+        try {
+            think(output, timeManager, maxDepth);
+        }
+        finally {
+            synchronized (this) {
+                pondering = false;
+            }
+        }
+    }
+    
+    /**
+     * Waits for the ponder thread, then switches back to the real board.  What the ponder search learned in the
+     * history heuristic, which lives on the board, is kept.
+     */
+    private void waitPonder() {
+        try {
+            ponderThread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ponderThread = null;
+        board = realBoard;
+        realBoard = null;
+        for (int i = 0; i < 64; ++i)
+            System.arraycopy(ponderBoard.history[i], 0, board.history[i], 0, 64);
+        ponderBoard = null;
+    }
+
+    /**
+     * 
+     * Think method starts our search, essentially it is the root recursive call.
+     * 
+     * 
+     * @param output - True/False to display debugging.
+     * @param timeManager - When to stop, see Project2_TimeManager_Thompson.
+     * @param maxDepth - maximum depth we should search
+     * 
+     * We implement the hard time limit by checking how much time has elapsed every 1024 nodes and setting the stop flag if it has passed.
+     * The time manager decides between iterations whether to start the next one.
+     * While pondering there is no time limit until ponderHit().  A stop() since clearStop() that came before
+     * think() got going isn't lost, it takes effect once the first iteration has finished.
+     * Every node checks the flag and returns straight away once it is set, taking back its move on the way, and the
+     * move played is the best one from the last iteration that finished.
      * 
      * 
      */
-    void think(int output, int maxTime, int maxDepth) {
-	/* some code that lets us get back here and return
-	   from think() when our time is up */
-	try {
-		
+    void think(int output, Project2_TimeManager_Thompson timeManager, int maxDepth) {
 			//Get the start time, get the end time to not take too long.
-            startTime = System.currentTimeMillis();
-            //End of the turn.
-            stopTime = startTime + maxTime;
+            //Locked against ponderHit(), which can change the limit from the GUI thread.
+            boolean stopPending = false;
+            synchronized (this) {
+                startTime = timeManager.start();
+                //End of the turn, not until a ponder hit if we are pondering.
+                stopTime = pondering ? Long.MAX_VALUE : timeManager.getHardStop();
+                this.timeManager = timeManager;
+                //A stop from a time or node limit in the last search is forgotten, a stop() is kept for later.
+                if (!pondering) {
+                    stopPending = stopRequested != 0;
+                    stop = false;
+                }
+            }
+            int skipped = 0;
+            nextCheck = 1024;
+            completedLength = 0;
 
-            //ply = single level of tree, 
-            //half moves (one by a single player)
-            ply = 0;
-            
-            //Number of nodes.
-            nodes = 0;
-          
-            //Clearing pv and board history for our new search
-            for (int i = 0; i < MAX_PLY; i++)
-                for (int j = 0; j < MAX_PLY; j++)
-                	//The best branch we currently know of.
-                    pv[i][j] = new Project2_Move_Thompson((char) 0, (char) 0, (char) 0, (char) 0);
-            for (int i = 0; i < 64; i++)
-                for (int j = 0; j < 64; j++)
-                    board.history[i][j] = 0;
+            resetSearch();
+            if (hashTable != null)
+                hashTable.newSearch();
             
             
             //Starting the search
@@ -118,6 +455,16 @@ public class Project2_Search_Thompson {
             
             //Increment our depth by one to allow for root level.
             maxDepth = maxDepth + 1;
+            //Start the Lazy SMP helpers, if any, on the same iterations.
+            startHelpers(maxDepth);
+            if (board.SEARCH == 4) {
+            	if (ybw == null || ybw.getThreads() != threads) {
+            		if (ybw != null)
+            			ybw.shutdown();
+            		ybw = new Project2_YBWSearch_Thompson(threads);
+            	}
+            	ybw.reset(stopTime, nodeLimit);
+            }
             if (output == 1)
             {
             	System.out.println("MaxDepth: " + maxDepth);
@@ -131,6 +478,14 @@ public class Project2_Search_Thompson {
             //Set our maxDepth and see how far we can get.
             for (int i = 1; i <= maxDepth; ++i) {
             	
+            	//Don't start an iteration past the soft limit or one that won't finish before the hard limit.
+            	//Pondering searches on until ponderHit() or stop().
+            	if (i > 1 && pondering)
+            		timeManager.iterationStarted();
+            	else if (i > 1 && !timeManager.startIteration(branchingFactor)) {
+            		skipped = i;
+            		break;
+            	}
             	/*
             	 * Basically, as we have searched we keep track of the path that produced our best move.
             	 * We can use this to order subsequent moves using the idea that following moves lie along the same path.
@@ -143,48 +498,360 @@ public class Project2_Search_Thompson {
             	//Should improve the performance of alpha beta pruning as noted by Knuth.
             	followPV = true;
             
+            	int iterationStartNodes = nodes;
             	int x = 0;
-            	//If the user selected Alpha Beta, do that.
-            	if(board.SEARCH == 2)
-            		x = searchMaxAB(-10000, 10000, i);
+            	//If the user selected Alpha Beta or PVS, search a window around the last score.
+            	if(board.SEARCH == 2 || board.SEARCH == 3)
+            		x = aspirate(i, lastScore);
             	//Minimax
             	else if(board.SEARCH == 1)
-            		x = this.searchMax(i);
+            		x = (threads > 1) ? parallelMax(i) : this.searchMax(i);
+            	//Young Brothers Wait, only keeps the best move rather than the whole PV.
+            	else if(board.SEARCH == 4) {
+            		x = toDark(ybw.search(board, i));
+            		nodes = (int) ybw.getNodes();
+            		if (!ybw.isStopped()) {
+            			pv[0][0] = ybw.getBest();
+            			pvLength[0] = 1;
+            		}
+            		else
+            			stop = true;
+            	}
             	else
             	{
             		//Should never get here.
             	}
+            	//Out of time or told to stop, this iteration didn't finish.
+            	if (stop)
+            		break;
             	//int x = searchMax(i);
             	//System.out.println("X: " + x);
             	//if(x > 10000)
             		//break;
             	//int x = search(-10000, 10000, i);
+            	lastScore = x;
+            	//nodes counts the whole search, the branching factor compares this iteration with the last one.
+            	int iterationNodes = nodes - iterationStartNodes;
+            	if (prevIterationNodes > 0)
+            		branchingFactor = (double) iterationNodes / prevIterationNodes;
+            	prevIterationNodes = iterationNodes;
+            	System.arraycopy(pv[0], 0, completedPV, 0, pvLength[0]);
+            	completedLength = pvLength[0];
+            	timeManager.iterationDone(pv[0][0]);
 		if (output > 0) {
                     System.out.print(/*"%3d  %9d  %5d "*/ i + "\t" + nodes + "\t" + x); 
                     for (int j = 0; j < pvLength[0]; ++j)
-                        System.out.print("\t" + pv[0][j].toString());
+                        System.out.print("\t" + Project2_Move_Thompson.toString(pv[0][j]));
                     System.out.println();
 		}
 		//if (x > 9000 || x < -9000)
           //          break;
+		//Told to stop before we started, now there is a move to play.
+		if (stopPending) {
+                    stop = true;
+                    break;
+		}
             }
+        //An unfinished iteration may have changed the PV, go back to the last one that finished (if there was one).
+        if (stop && completedLength > 0) {
+            System.arraycopy(completedPV, 0, pv[0], 0, completedLength);
+            pvLength[0] = completedLength;
         }
-        catch (Project2_StopSearchingException_Thompson e) {
-            /* make sure to take back the line we were searching */
-        	
-        	//In this case, just use the previous searched depths as noted in the report.
-            while (ply != 0) {
-                board.takeBack();
-                --ply;
-            }
-        }
+        long helperNodes = stopHelpers();
+        long requested = stopRequested;
+        if (requested != 0)
+            stopLatency = System.nanoTime() - requested;
+        if (board.SEARCH == 4)
+            nodes = (int) ybw.getNodes();
         
         //Output some diagnostic information.
         System.out.println("Total Nodes searched: " + nodes);
+        System.out.println("Time: " + (System.currentTimeMillis() - startTime) + " ms soft limit: " + timeManager.getExtendedSoft()
+                + " ms hard limit: " + timeManager.getHard() + " ms best move changes: " + timeManager.getExtensions());
+        if (skipped > 0)
+            System.out.println("Didn't start iteration " + skipped + (timeManager.getPredicted() > 0
+                    ? ", predicted " + timeManager.getPredicted() + " ms" : ", soft limit passed"));
+        if (requested != 0)
+            System.out.println("Stopped on request, latency: " + (stopLatency / 1000) + " us");
+        if (helperThreads.length > 0)
+            System.out.println("Threads: " + threads + " helper nodes: " + helperNodes + " all threads: " + (nodes + helperNodes));
+        if (board.SEARCH == 3)
+            System.out.println("PVS re-searches: " + researches);
+        if (board.SEARCH == 4)
+            System.out.println("YBW threads: " + threads + " splits: " + ybw.getSplits() + " aborted brothers: " + ybw.getAborts());
+        if (nullTries > 0)
+            System.out.println("Null moves: " + nullTries + " cutoffs: " + nullCuts + " failed verification: " + nullVerifyFails);
+        if (reductions > 0 || latePrunes > 0)
+            System.out.println("Late move reductions: " + reductions + " re-searched: " + reductionResearches + " late move prunes: " + latePrunes);
+        if (futilityPrunes > 0 || razorCuts > 0)
+            System.out.println("Futility prunes: " + futilityPrunes + " razor cutoffs: " + razorCuts);
+        if (branchingFactor > 0)
+            System.out.println("Effective branching factor: " + String.format("%.2f", branchingFactor));
+        if (cutoffs > 0)
+            System.out.println("Beta cutoffs: " + cutoffs + " on the first move: " + (100L * firstMoveCutoffs / cutoffs) + "%");
+        if ((board.SEARCH == 2 || board.SEARCH == 3) && aspirationWindow > 0)
+            System.out.println("Aspiration fail lows: " + aspirationFailLows + " fail highs: " + aspirationFailHighs);
+        if (quiescence && board.SEARCH >= 2)
+            System.out.println("Quiescence nodes: " + qnodes + " delta pruned: " + deltaPrunes + " SEE pruned: " + seePrunes);
+        if (hashTable != null)
+            System.out.println("Hash probes: " + hashProbes + " hits: " + hashHits + " cutoffs: " + hashCuts);
+        System.out.println("Pawn hash probes: " + board.pawnTable.probes + " hits: " + board.pawnTable.hits);
         return;
     }
 
-    
+
+    /**
+     * Starts a new game on a board, which may be the one already being used, and forgets everything learned in
+     * earlier searches: the history, killers, countermoves, continuation history, PV and hash table.  The
+     * settings (threads, hash size, pruning) are kept.  No search may be running.
+     * 
+     * @param b - Board for the new game.
+     */
+    public void newGame(Project2_Board_Thompson b) {
+        stopPonder();
+        board = b;
+        for (int i = 0; i < 64; i++)
+            Arrays.fill(board.history[i], 0);
+        clearOrdering();
+        for (int i = 0; i < MAX_PLY; i++)
+            Arrays.fill(pv[i], 0);
+        pvLength[0] = 0;
+        lastScore = 0;
+        lastRootPly = -1;
+        if (hashTable != null)
+            hashTable.clear();
+    }
+
+    /**
+     * Clears the statistics for a new search and ages what was learned in the last one, see ageSearchState().
+     */
+    void resetSearch() {
+	//ply = single level of tree, 
+	//half moves (one by a single player)
+	ply = 0;
+	
+	//Number of nodes.
+	nodes = 0;
+	qnodes = 0;
+	deltaPrunes = 0;
+	seePrunes = 0;
+	hashProbes = 0;
+	hashHits = 0;
+	hashCuts = 0;
+	researches = 0;
+	aspirationFailLows = 0;
+	aspirationFailHighs = 0;
+	cutoffs = 0;
+	firstMoveCutoffs = 0;
+	nullTries = 0;
+	nullCuts = 0;
+	nullVerifyFails = 0;
+	nullDisabled = false;
+	reductions = 0;
+	reductionResearches = 0;
+	latePrunes = 0;
+	futilityPrunes = 0;
+	razorCuts = 0;
+	prevIterationNodes = 0;
+	branchingFactor = 0;
+	board.pawnTable.probes = 0;
+	board.pawnTable.hits = 0;
+
+	ageSearchState();
+    }
+
+    /**
+     * Carries the move ordering from the last search over to this one, so the second and later moves of a game
+     * start warm instead of from nothing.
+     * 
+     * The history and continuation history are halved so what was learned at the last root counts for less
+     * (the history is cleared on the first search since newGame()), but not when the root is at the same ply as
+     * the last one, such as the search after a ponder miss, so they are halved once per move.
+     * The killers move down by the number of plies played since the last root, so they stay with the ply they
+     * were found at, and the PV does the same if the moves played were the ones it expected (if they weren't,
+     * or the board isn't a continuation of the last search, it is cleared).  Countermoves are kept as they are.
+     */
+    void ageSearchState() {
+	int played = board.hply - lastRootPly;
+	boolean sameGame = lastRootPly >= 0 && played >= 0 && played < MAX_PLY
+		&& (played == 0 ? board.hash : board.histDat[lastRootPly].hash) == lastRootHash;
+	//A board that was used by another searcher may have its history, start from nothing as a new searcher always has.
+	if (lastRootPly < 0 || played != 0) {
+	    for (int i = 0; i < 64; i++)
+	        for (int j = 0; j < 64; j++)
+	            board.history[i][j] = (lastRootPly < 0) ? 0 : board.history[i][j] >> 1;
+	    for (int i = 0; i < contHist.length; ++i) {
+	        int t[] = contHist[i];
+	        for (int j = 0; j < t.length; ++j)
+	            t[j] /= 2;
+	    }
+	}
+	if (lastRootPly < 0 || played < 0 || played >= MAX_PLY)
+	    played = MAX_PLY;
+	for (int i = 0; i < MAX_PLY; ++i) {
+	    killers[i][0] = (i + played < MAX_PLY) ? killers[i + played][0] : 0;
+	    killers[i][1] = (i + played < MAX_PLY) ? killers[i + played][1] : 0;
+	}
+	//Keep the rest of the PV if it predicted the moves that were played.
+	int length = sameGame ? pvLength[0] - played : 0;
+	for (int k = 0; k < played && length > 0; ++k)
+	    if (board.histDat[lastRootPly + k].m != pv[0][k])
+	        length = 0;
+	length = Math.max(0, length);
+	for (int j = 0; j < MAX_PLY; ++j)
+	    pv[0][j] = (j < length) ? pv[0][j + played] : 0;
+	pvLength[0] = length;
+	//The other rows are only scratch space for the search.
+	for (int i = 1; i < MAX_PLY; i++)
+	    Arrays.fill(pv[i], 0);
+	lastRootPly = board.hply;
+	lastRootHash = board.hash;
+    }
+
+    /**
+     * Starts the Lazy SMP helper threads if there are any.  Each helper gets a fresh copy of the board
+     * and this searcher's settings.
+     * 
+     * @param maxDepth - Deepest iteration to search, the same as the main thread.
+     */
+    void startHelpers(final int maxDepth) {
+	if (threads == 1 || (board.SEARCH != 2 && board.SEARCH != 3) || hashTable == null) {
+            helperThreads = new Thread[0];
+            return;
+	}
+	if (helpers.length != threads - 1) {
+            helpers = new Project2_Search_Thompson[threads - 1];
+            for (int i = 0; i < helpers.length; ++i)
+                helpers[i] = new Project2_Search_Thompson(hashTable);
+	}
+	helperThreads = new Thread[helpers.length];
+	for (int i = 0; i < helpers.length; ++i) {
+            final Project2_Search_Thompson helper = helpers[i];
+            final int id = i + 1;
+            helper.prepareHelper(this);
+            helperThreads[i] = new Thread("Search helper " + id) {
+                public void run() {
+                    helper.helperThink(id, maxDepth);
+                }
+            };
+            helperThreads[i].setDaemon(true);
+            helperThreads[i].start();
+	}
+    }
+
+    /**
+     * Tells the helper threads to stop and waits for them.
+     * 
+     * @return Nodes searched by the helpers.
+     */
+    long stopHelpers() {
+	long n = 0;
+	for (int i = 0; i < helperThreads.length; ++i)
+            helpers[i].stop = true;
+	for (int i = 0; i < helperThreads.length; ++i) {
+            try {
+                helperThreads[i].join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            n += helpers[i].nodes;
+	}
+	return n;
+    }
+
+    /**
+     * Copies the main searcher's position, table, time limit and settings into a helper.
+     */
+    void prepareHelper(Project2_Search_Thompson main) {
+	board = new Project2_Board_Thompson(main.board);
+	hashTable = main.hashTable;
+	startTime = main.startTime;
+	stopTime = main.stopTime;
+	lastScore = main.lastScore;
+	quiescence = main.quiescence;
+	aspirationWindow = main.aspirationWindow;
+	nullMove = main.nullMove;
+	nullVerify = main.nullVerify;
+	lateReductions = main.lateReductions;
+	latePruning = main.latePruning;
+	futility = main.futility;
+	razoring = main.razoring;
+	futilityMargin = main.futilityMargin.clone();
+	razorMargin = main.razorMargin.clone();
+	parent = main;
+	nodeLimit = 0;
+	nextCheck = 1024;
+	stop = false;
+    }
+
+    /**
+     * A helper thread's search, iterative deepening like think() until the main thread stops it.
+     * Odd numbered helpers search one ply deeper than the main thread in every iteration so the
+     * threads don't all work on the same depth at the same time.
+     * 
+     * @param id - Helper number, from 1.
+     * @param maxDepth - Deepest iteration to search.
+     */
+    void helperThink(int id, int maxDepth) {
+	resetSearch();
+	for (int i = 1 + (id & 1); i <= maxDepth && !stop; ++i) {
+            followPV = true;
+            int x = aspirate(i, lastScore);
+            if (!stop)
+                lastScore = x;
+	}
+    }
+        
+    /**
+     * Searches one iteration with an aspiration window.
+     * 
+     * The score rarely moves far from one iteration to the next, so instead of the full window we search
+     * (last - width, last + width), which gives more cutoffs.  If the score lands outside we have only learned
+     * a bound, so the window is widened on that side (doubling each time) and the iteration searched again.
+     * The first iteration, or a width of 0, uses the full window.
+     * 
+     * @param depth - depth of this iteration
+     * @param last - dark-relative score from the previous iteration
+     * @return dark-relative score
+     */
+    int aspirate(int depth, int last) {
+	if (depth == 1 || aspirationWindow == 0)
+            return searchRoot(-10000, 10000, depth);
+	int delta = aspirationWindow;
+	int alpha = Math.max(last - delta, -10000);
+	int beta = Math.min(last + delta, 10000);
+	for (;;) {
+            followPV = true;
+            int x = searchRoot(alpha, beta, depth);
+            if (stop)
+                return x;
+            if (x <= alpha && alpha > -10000) {
+                ++aspirationFailLows;
+                delta *= 2;
+                alpha = Math.max(x - delta, -10000);
+            }
+            else if (x >= beta && beta < 10000) {
+                ++aspirationFailHighs;
+                delta *= 2;
+                beta = Math.min(x + delta, 10000);
+            }
+            else
+                return x;
+	}
+    }
+
+    /**
+     * Calls the root of the Alpha Beta or PVS search with a dark-relative window.
+     * 
+     * @return dark-relative score
+     */
+    int searchRoot(int alpha, int beta, int depth) {
+	if (board.SEARCH == 3)
+            return (board.side == Project2_Board_Thompson.DARK) ? searchPVS(alpha, beta, depth) : -searchPVS(-beta, -alpha, depth);
+	return searchMaxAB(alpha, beta, depth);
+    }
+
     /**
      * Max function for Minimax Alpha Beta
      * 
@@ -200,7 +867,11 @@ public class Project2_Search_Thompson {
      * @returns score for tree level.
      * 
      */
-    int searchMaxAB(int alpha, int beta, int depth) throws Project2_StopSearchingException_Thompson {
+    int searchMaxAB(int alpha, int beta, int depth) {
+    	//At the horizon, let the quiescence search play out the captures.
+    	if (depth == 0 && quiescence)
+    		return quiesceScore(alpha, beta);
+    	
     	//Increment our node count.
     	++nodes;
     	
@@ -210,10 +881,9 @@ public class Project2_Search_Thompson {
 
    	//Increment Nodes
 
-   	//Check to see how are doing relative to our time limit.
-   	//Do Check ever 1024 nodes <bit of a random number>
-   	if ((nodes & 1023) == 0)
-               checkup();
+   	//Check to see if we have been told to stop, or are out of time or nodes.
+   	if (checkup())
+               return 0;
 
    	pvLength[ply] = ply;
    
@@ -228,30 +898,109 @@ public class Project2_Search_Thompson {
    	if (check)
    		++depth;
    	
+   	/* have we been here before? */
+   	int hashMove = 0;
+   	if (hashTable != null) {
+   		long entry = probeHash();
+   		if (entry != 0) {
+   			if (hashCutoff(entry, depth, alpha, beta))
+   				return scoreFromHash(Project2_TranspositionTable_Thompson.getScore(entry));
+   			hashMove = Project2_TranspositionTable_Thompson.getMove(entry);
+   		}
+   	}
+   	
+   	int staticEval = check ? 0 : board.getScore();
+   	
+   	/* 
+   	 * Razoring, so far below alpha that only a capture could save us, so let the quiescence search decide.
+   	 */
+   	if (razor(check, depth, beta - alpha == 1, alpha) && staticEval + razorMargin[depth] <= alpha
+   			&& (quiescence ? quiesceScore(alpha, alpha + 1) : staticEval) <= alpha) {
+   		++razorCuts;
+   		return alpha;
+   	}
+   	//Futility, quiet moves can't make up the difference so don't search them.
+   	boolean futile = frontierNode(check, depth, beta - alpha == 1, alpha) && staticEval + futilityMargin[depth] <= alpha;
+   	
+   	/* 
+   	 * Null move, let the opponent move twice.  If the reduced search still comes out at beta or
+   	 * better our position is so good there is no point searching the real moves.
+   	 */
+   	if (nullMoveAllowed(check, depth) && staticEval >= beta) {
+   		int r = nullDepth(depth);
+   		played[ply] = 0;
+   		//We haven't called gen() here yet, give this ply an empty list so the next ply's starts in the right place.
+   		board.firstMove[ply + 1] = board.firstMove[ply];
+   		board.makeNullMove();
+   		ply++;
+   		int x = searchMinAB(beta - 1, beta, r);
+   		board.takeBackNull();
+   		ply--;
+   		if (stop)
+   			return 0;
+   		if (x >= beta) {
+   			if (!needsVerify(depth))
+   				return nullCut(beta);
+   			nullDisabled = true;
+   			x = searchMaxAB(beta - 1, beta, r);
+   			nullDisabled = false;
+   			if (stop)
+   				return 0;
+   			if (x >= beta)
+   				return nullCut(beta);
+   			++nullVerifyFails;
+   		}
+   	}
+   	
    	//Get possible valid moves
-   	TreeSet validMoves = board.gen();
+   	board.gen(ply);
+   	orderQuiets();
+   	if (hashMove != 0)
+   		sortHashMove(hashMove);
    	
    	//----
    	//Are we going to follow what we think is the best path we have found?
    	if (followPV)  /* are we following the PV? */
-               sortPV(validMoves);
+               sortPV();
 
    	/* loop through the moves */
    	boolean foundMove = false;
-           Iterator i = validMoves.iterator();
-   	while (i.hasNext()) {
+   	boolean pruned = false;
+   	int legal = 0;
+   	int alphaStart = alpha;
+   	int bestMove = 0;
+           for (int i = board.firstMove[ply]; i < board.firstMove[ply + 1]; ++i) {
    		
-   			//Get the move
-   		Project2_Move_Thompson m = (Project2_Move_Thompson) i.next();
-               //See if it is legal, if not, skip it (state returned to pre-move).
-               if (!board.makeMove(m))
-                   continue;
+   			//Get the best move left in the list
+   			pickMove(i);
+   			int m = board.moveStack[i];
+   			//Late quiet moves near the horizon aren't worth looking at (only in null window searches, where an exact score isn't needed).
+   			if (beta - alpha == 1 && latePrune(i, m, check, depth, legal))
+   				continue;
+   			setPlayed(m);
+               //gen() only generates legal moves.
+               board.makeLegalMove(m);
+               if (futile && futilePrune(m)) {
+            	   pruned = true;
+            	   continue;
+               }
                //if it is legal, we found a move
                foundMove = true;
+               ++legal;
                //Increment the turn for next player
                ply++;
-               //Search the next level for response move
-               int x = searchMinAB(alpha, beta, depth - 1);
+               //Search the next level for response move, late quiet moves to a reduced depth first.
+               int r = lateReduction(i, m, check, depth, legal);
+               int x;
+               if (r > 0) {
+            	   x = searchMinAB(alpha, alpha + 1, depth - 1 - r);
+            	   if (x > alpha) {
+            		   ++reductionResearches;
+            		   x = searchMinAB(alpha, beta, depth - 1);
+            	   }
+               }
+               else
+            	   x = searchMinAB(alpha, beta, depth - 1);
                
                
                
@@ -259,12 +1008,14 @@ public class Project2_Search_Thompson {
                board.takeBack();
                //decrement the turn, back to where we started
                ply--;
+               if (stop)
+                   return 0;
                
                
                if (x > alpha) {
                   //Cut off, remember the move that caused it.
             	   
-                   board.history[m.from][m.to] += depth;
+                   board.history[Project2_Move_Thompson.getFrom(m)][Project2_Move_Thompson.getTo(m)] += depth;
                    alpha = x;
 
                    /* 
@@ -276,14 +1027,20 @@ public class Project2_Search_Thompson {
                    for (int j = ply + 1; j < pvLength[ply + 1]; ++j)
                            pv[ply][j] = pv[ply + 1][j];
                    pvLength[ply] = pvLength[ply + 1];
+                   bestMove = m;
                    
-                   if (alpha >= beta)
+                   if (alpha >= beta) {
+                       cutoff(m, i, depth, legal);
+                       storeHash(m, alpha, depth, Project2_TranspositionTable_Thompson.LOWER);
                        return alpha;
+                   }
                }
    	}
   	
-   	//We will only get here if we have a checkmate or a draw.
+   	//We will only get here if we have a checkmate or a draw (or futility pruned every move).
   	if (!foundMove) {
+  		if (pruned)
+  			return alpha;
   		//Terrible for us
               if (check)
                   return -10000 + ply;
@@ -294,6 +1051,7 @@ public class Project2_Search_Thompson {
   	//Fifty move draw, return stalemate.
   	if (board.fifty >= 100)
               return 0;
+  	storeHash(bestMove, alpha, depth, alpha > alphaStart ? Project2_TranspositionTable_Thompson.EXACT : Project2_TranspositionTable_Thompson.UPPER);
   	//return the best move found.
   	return alpha;
      	
@@ -312,28 +1070,27 @@ public class Project2_Search_Thompson {
      * 
      * @param depth - Current Depth we are searching.
      * @return - Maximum value found.
-     * @throws StopSearchingException - Time limit has elapsed.
      */
-    int searchMax(int depth) throws Project2_StopSearchingException_Thompson {
+    int searchMax(int depth) {
     	
     	//initial max found.
     	int prevMax = -10000;
+    	int bestMove = 0;
     	
     	
  
     	//Increment Nodes
     	++nodes;
+    	//Set before the horizon return too so the caller never copies a stale PV.
+    	pvLength[ply] = ply;
     	       	if(depth == 0)
     	       		return board.getScore();
     	   
     	   	
 
-    	   	//Check to see how are doing relative to our time limit.
-    	   	//Do Check ever 1024 nodes <bit of a random number>
-    	   	if ((nodes & 1023) == 0)
-    	               checkup();
-
-    	   	pvLength[ply] = ply;
+    	   	//Check to see if we have been told to stop, or are out of time or nodes.
+    	   	if (checkup())
+    	               return 0;
     	   
 
 
@@ -348,22 +1105,21 @@ public class Project2_Search_Thompson {
     	   		++depth;
     	   	
     	   	//Get possible valid moves
-    	   	TreeSet validMoves = board.gen();
+    	   	board.gen(ply);
     	   	
     	   	//----
     	   	//Are we going to follow what we think is the best path we have found?
     	   	if (followPV)  /* are we following the PV? */
-    	               sortPV(validMoves);
+    	               sortPV();
 
     	   	/* loop through the moves */
     	   	boolean foundMove = false;
-    	           Iterator i = validMoves.iterator();
-    	   	while (i.hasNext()) {
-    	   			//Get the move
-    	   		Project2_Move_Thompson m = (Project2_Move_Thompson) i.next();
-    	               //See if it is legal, if not, skip it (state returned to pre-move).
-    	               if (!board.makeMove(m))
-    	                   continue;
+    	           for (int i = board.firstMove[ply]; i < board.firstMove[ply + 1]; ++i) {
+    	   			//Get the best move left in the list
+    	   			pickMove(i);
+    	   			int m = board.moveStack[i];
+    	               //gen() only generates legal moves.
+    	               board.makeLegalMove(m);
     	               //if it is legal, we found a move
     	               foundMove = true;
     	               //Increment the turn for next player
@@ -377,13 +1133,17 @@ public class Project2_Search_Thompson {
     	               board.takeBack();
     	               //decrement the turn, back to where we started
     	               ply--;
+    	               if (stop)
+    	                   return 0;
     	               
     	               
-    	               //We have found a new maximum value.
-    	               if (x > prevMax) {
+    	               //We have found a new maximum value.  Equal scores go to the lowest move so the
+    	               //result doesn't depend on the order the moves are searched in, see parallelMax().
+    	               if (x > prevMax || (x == prevMax && lowerMove(m, bestMove))) {
+    	            	   bestMove = m;
     	            	   
     	                   //this move caused a cutoff, so increase the history value so it gets ordered high next time we can search it 	   
-    	                   board.history[m.from][m.to] += depth;
+    	                   board.history[Project2_Move_Thompson.getFrom(m)][Project2_Move_Thompson.getTo(m)] += depth;
 
     	                   /* update the PV to we can re-order these higher - better pruning. */
     	                   pv[ply][ply] = m;
@@ -415,6 +1175,162 @@ public class Project2_Search_Thompson {
  	
     
     
+    /**
+     * Ties in Minimax go to the lower move (from, to and promotion compared as one number).
+     */
+    static boolean lowerMove(int m, int best) {
+	return best == 0 || (m & 0x7FFF) < (best & 0x7FFF);
+    }
+
+    /**
+     * Minimax with the root moves split across a ForkJoinPool, one task per legal root move.
+     * 
+     * Each worker thread has its own searcher and board (minimaxWorkers) which is set to the root position,
+     * makes the task's move and runs searchMin() on it.  With no pruning the subtrees don't depend on each
+     * other, so this gives the same score, PV and node count as searchMax(), the only thing that could differ
+     * is which of two equal moves is picked and lowerMove() settles that the same way in both.
+     * 
+     * What each task adds to the history heuristic is added to the main board after the join, so the next
+     * iteration is ordered with everything every worker learned.  A node limit is shared by the workers
+     * (sharedNodes) rather than each of them getting the whole of it.
+     * 
+     * @param depth - Current Depth we are searching.
+     * @return - Maximum value found.
+     */
+    int parallelMax(int depth) {
+	++nodes;
+	pvLength[0] = 0;
+	boolean check = board.inCheck(board.side);
+	if (check)
+            ++depth;
+	if (minimaxPool == null || minimaxPool.getParallelism() != threads) {
+            if (minimaxPool != null)
+                minimaxPool.shutdown();
+            minimaxPool = new java.util.concurrent.ForkJoinPool(threads);
+	}
+
+	sharedNodes = (nodeLimit > 0) ? new java.util.concurrent.atomic.AtomicLong(Math.max(1, nodeLimit - nodes)) : null;
+	List<RootMove> tasks = new ArrayList<RootMove>();
+	board.gen(0);
+	for (int i = board.firstMove[0]; i < board.firstMove[1]; ++i) {
+            int m = board.moveStack[i];
+            tasks.add(new RootMove(m, depth));
+	}
+	if (tasks.isEmpty())
+            return check ? -10000 : 0;
+	for (RootMove t : tasks)
+            minimaxPool.execute(t);
+
+	boolean stopped = false;
+	int prevMax = -10000;
+	int bestMove = 0;
+	int line[] = null;
+	for (RootMove t : tasks) {
+            int r[] = t.join();
+            nodes += t.nodes;
+            if (r == null) {
+                stopped = true;
+                continue;
+            }
+            if (r[0] > prevMax || (r[0] == prevMax && lowerMove(t.move, bestMove))) {
+                prevMax = r[0];
+                bestMove = t.move;
+                line = r;
+            }
+	}
+	sharedNodes = null;
+	//Only now that every task has copied the root board can its history change.
+	for (RootMove t : tasks)
+            if (t.history != null)
+                for (int i = 0; i < 64; ++i)
+                    for (int j = 0; j < 64; ++j)
+                        board.history[i][j] += t.history[i][j];
+	if (stopped) {
+            stop = true;
+            return 0;
+	}
+	pv[0][0] = bestMove;
+	for (int j = 1; j < line.length - 1; ++j)
+            pv[0][j] = line[j + 1];
+	pvLength[0] = line.length - 1;
+	if (board.fifty >= 100)
+            return 0;
+	return prevMax;
+    }
+
+    /**
+     * Searches one root move for parallelMax() on the worker thread's own searcher.
+     */
+    private final class RootMove extends java.util.concurrent.RecursiveTask<int[]> {
+	private static final long serialVersionUID = 1L;
+	final int move;
+	final int depth;
+	/**
+	 * What the task added to the history heuristic and the nodes it searched, stopped or not, read after the join.
+	 */
+	int history[][];
+	int nodes;
+
+	RootMove(int move, int depth) {
+            this.move = move;
+            this.depth = depth;
+	}
+
+	protected int[] compute() {
+            Project2_Search_Thompson worker = minimaxWorkers.get();
+            int r[] = worker.searchRootMove(Project2_Search_Thompson.this, move, depth);
+            history = worker.historyGain(board);
+            nodes = worker.nodes;
+            return r;
+	}
+    }
+
+    /**
+     * Runs on a Minimax worker: sets the board to the main searcher's root, makes the move and searches it.
+     * 
+     * @return {score, nodes, PV from ply 1 on}, or null if the search was stopped.
+     * The node limit, if there is one, is taken from main's sharedNodes by checkup().
+     */
+    int[] searchRootMove(Project2_Search_Thompson main, int m, int depth) {
+	board.copyFrom(main.board);
+	parent = main;
+	stopTime = main.stopTime;
+	nodeLimit = 0;
+	stop = false;
+	followPV = false;
+	nodes = 0;
+	nextCheck = 1024;
+	chargedNodes = 0;
+	java.util.concurrent.atomic.AtomicLong shared = main.sharedNodes;
+	if (shared != null && shared.get() <= 0)
+            return null;
+	board.makeLegalMove(m);
+	ply = 1;
+	int x = searchMin(depth - 1);
+	ply = 0;
+	if (stop)
+            return null;
+	int r[] = new int[pvLength[1] + 1];
+	r[0] = x;
+	r[1] = nodes;
+	for (int j = 1; j < pvLength[1]; ++j)
+            r[j + 1] = pv[1][j];
+	return r;
+    }
+
+    /**
+     * What the last searchRootMove() added to the history heuristic of this worker's board.
+     * 
+     * @param root - The board it was copied from, whose history hasn't changed since.
+     */
+    int[][] historyGain(Project2_Board_Thompson root) {
+	int gain[][] = new int[64][64];
+	for (int i = 0; i < 64; ++i)
+            for (int j = 0; j < 64; ++j)
+                gain[i][j] = board.history[i][j] - root.history[i][j];
+	return gain;
+    }
+
     /**
      * Min function for our Minimax search.
      * 
@@ -427,15 +1343,16 @@ public class Project2_Search_Thompson {
      * 
      * @param depth - Current Depth we are searching.
      * @return - Manimum value found.
-     * @throws StopSearchingException - Time limit has elapsed.
      */
     
-    int searchMin(int depth) throws Project2_StopSearchingException_Thompson {
+    int searchMin(int depth) {
     	
       	int prevMin = 10000;
+      	int bestMove = 0;
       	
  		 //Bottom depth for this level, eval our board to get a score for this series of moves.
       	++nodes;
+      	pvLength[ply] = ply;
       	if(depth == 0)
       	{
       		return board.getScore();
@@ -443,12 +1360,10 @@ public class Project2_Search_Thompson {
   	
   	//Increment Nodes
 
-  	//Check to see how are doing relative to our time limit.
-  	/* do some housekeeping every 1024 nodes */
-  	if ((nodes & 1023) == 0)
-              checkup();
+  	//Check to see if we have been told to stop, or are out of time or nodes.
+  	if (checkup())
+              return 0;
 
-  	pvLength[ply] = ply;
   	//System.out.println("Settting pvLength[ply] to: " + ply);
   	//if(depth == 1)
   	//return 0;
@@ -465,23 +1380,22 @@ public class Project2_Search_Thompson {
   		++depth;
   	
   	//Get possible valid moves
-  	TreeSet validMoves = board.gen();
+  	board.gen(ply);
   	
   	//----
   	//Are we going to follow what we think is the best path we have found?
   	//We should so that moves are ordered better .
   	if (followPV)  
-              sortPV(validMoves);
+              sortPV();
 
   	/* loop through the moves */
   	boolean foundMove = false;
-          Iterator i = validMoves.iterator();
-  	while (i.hasNext()) {
-  			//Get the move
-  		Project2_Move_Thompson m = (Project2_Move_Thompson) i.next();
-              //See if it is legal, if not, skip it (state returned to pre-move).
-              if (!board.makeMove(m))
-                  continue;
+          for (int i = board.firstMove[ply]; i < board.firstMove[ply + 1]; ++i) {
+  			//Get the best move left in the list
+  			pickMove(i);
+  			int m = board.moveStack[i];
+              //gen() only generates legal moves.
+              board.makeLegalMove(m);
               //if it is legal, we found a move
               foundMove = true;
               //Increment the turn for next player
@@ -493,12 +1407,15 @@ public class Project2_Search_Thompson {
               board.takeBack();
               //decrement the turn, back to where we started
               ply--;
+              if (stop)
+                  return 0;
               
               
-              //We have found a new minimum value.
-              if (x < prevMin) {
+              //We have found a new minimum value, ties as in searchMax().
+              if (x < prevMin || (x == prevMin && lowerMove(m, bestMove))) {
+            	  bestMove = m;
             	  
-                  board.history[m.from][m.to] += depth;
+                  board.history[Project2_Move_Thompson.getFrom(m)][Project2_Move_Thompson.getTo(m)] += depth;
                   
                   pv[ply][ply] = m;
                   for (int j = ply + 1; j < pvLength[ply + 1]; ++j)
@@ -543,10 +1460,13 @@ public class Project2_Search_Thompson {
  	 * @param beta  - min cutoff
  	 * @param depth - how deep in the tree are we
  	 * @return score for leve in tree.
- 	 * @throws StopSearchingException - Timelimit is up, just eval.
  	 */
- 	 int searchMinAB(int alpha, int beta, int depth) throws Project2_StopSearchingException_Thompson {
+ 	 int searchMinAB(int alpha, int beta, int depth) {
 
+ 		//At the horizon, let the quiescence search play out the captures.
+ 		if (depth == 0 && quiescence)
+ 			return quiesceScore(alpha, beta);
+ 		
  		//Increment nodes for statistics.
  		++nodes;
  		
@@ -558,8 +1478,8 @@ public class Project2_Search_Thompson {
   	
 
   	//Check to see how are doing relative to our time limit.
-  	if ((nodes & 1023) == 0)
-              checkup();
+  	if (checkup())
+              return 0;
 
   	//Update principal variation tracker
   	pvLength[ply] = ply;
@@ -575,40 +1495,112 @@ public class Project2_Search_Thompson {
   	if (check)
   		++depth;
   	
+  	/* have we been here before? */
+  	int hashMove = 0;
+  	if (hashTable != null) {
+  		long entry = probeHash();
+  		if (entry != 0) {
+  			if (hashCutoff(entry, depth, alpha, beta))
+  				return scoreFromHash(Project2_TranspositionTable_Thompson.getScore(entry));
+  			hashMove = Project2_TranspositionTable_Thompson.getMove(entry);
+  		}
+  	}
+  	
+  	//Razoring and futility, same as searchMaxAB() from the other side.
+  	int staticEval = check ? 0 : board.getScore();
+  	if (razor(check, depth, beta - alpha == 1, beta) && staticEval - razorMargin[depth] >= beta
+  			&& (quiescence ? quiesceScore(beta - 1, beta) : staticEval) >= beta) {
+  		++razorCuts;
+  		return beta;
+  	}
+  	boolean futile = frontierNode(check, depth, beta - alpha == 1, beta) && staticEval - futilityMargin[depth] >= beta;
+  	
+  	//Null move, same as searchMaxAB() from the other side.
+  	if (nullMoveAllowed(check, depth) && staticEval <= alpha) {
+  		int r = nullDepth(depth);
+  		played[ply] = 0;
+  		board.firstMove[ply + 1] = board.firstMove[ply];
+  		board.makeNullMove();
+  		ply++;
+  		int x = searchMaxAB(alpha, alpha + 1, r);
+  		board.takeBackNull();
+  		ply--;
+  		if (stop)
+  			return 0;
+  		if (x <= alpha) {
+  			if (!needsVerify(depth))
+  				return nullCut(alpha);
+  			nullDisabled = true;
+  			x = searchMinAB(alpha, alpha + 1, r);
+  			nullDisabled = false;
+  			if (stop)
+  				return 0;
+  			if (x <= alpha)
+  				return nullCut(alpha);
+  			++nullVerifyFails;
+  		}
+  	}
+  	
   	//Get possible valid moves
-  	TreeSet validMoves = board.gen();
+  	board.gen(ply);
+  	orderQuiets();
+  	if (hashMove != 0)
+  		sortHashMove(hashMove);
   	
   	//Are we going to follow what we think is the best path we have found?
   	if (followPV)  /* are we following the PV? */
-              sortPV(validMoves);
+              sortPV();
 
   	/* loop through the moves */
   	boolean foundMove = false;
-          Iterator i = validMoves.iterator();
-  	while (i.hasNext()) {
-  			//Get the move
-  		Project2_Move_Thompson m = (Project2_Move_Thompson) i.next();
-              //See if it is legal, if not, skip it (state returned to pre-move).
-              if (!board.makeMove(m))
-                  continue;
+  	boolean pruned = false;
+  	int legal = 0;
+  	int betaStart = beta;
+  	int bestMove = 0;
+          for (int i = board.firstMove[ply]; i < board.firstMove[ply + 1]; ++i) {
+  			//Get the best move left in the list
+  			pickMove(i);
+  			int m = board.moveStack[i];
+  			if (beta - alpha == 1 && latePrune(i, m, check, depth, legal))
+  				continue;
+  			setPlayed(m);
+              //gen() only generates legal moves.
+              board.makeLegalMove(m);
+              if (futile && futilePrune(m)) {
+            	  pruned = true;
+            	  continue;
+              }
               //if it is legal, we found a move
               foundMove = true;
+              ++legal;
               //Increment the turn for next player
               ply++;
-              //Search the next level for response move
-              int x = searchMaxAB(alpha, beta, depth - 1);
+              //Search the next level for response move, late quiet moves to a reduced depth first.
+              int r = lateReduction(i, m, check, depth, legal);
+              int x;
+              if (r > 0) {
+            	  x = searchMaxAB(beta - 1, beta, depth - 1 - r);
+            	  if (x < beta) {
+            		  ++reductionResearches;
+            		  x = searchMaxAB(alpha, beta, depth - 1);
+            	  }
+              }
+              else
+            	  x = searchMaxAB(alpha, beta, depth - 1);
 
               //Undo whatever we did
               board.takeBack();
               //decrement the turn, back to where we started
               ply--;
+              if (stop)
+                  return 0;
               
               //Cut-off found.
               if (x < beta) {
                   /* this move caused a cutoff, so increase the history
                       value so it gets ordered high next time we can
                       search it */
-                  board.history[m.from][m.to] += depth;
+                  board.history[Project2_Move_Thompson.getFrom(m)][Project2_Move_Thompson.getTo(m)] += depth;
                   //store value
                   beta = x;
 
@@ -619,10 +1611,14 @@ public class Project2_Search_Thompson {
                   for (int j = ply + 1; j < pvLength[ply + 1]; ++j)
                           pv[ply][j] = pv[ply + 1][j];
                   pvLength[ply] = pvLength[ply + 1];
+                  bestMove = m;
                   
                   //return the value.
-                  if (beta <= alpha)
+                  if (beta <= alpha) {
+                      cutoff(m, i, depth, legal);
+                      storeHash(m, beta, depth, Project2_TranspositionTable_Thompson.UPPER);
                       return beta;
+                  }
                   
                   
               }
@@ -632,6 +1628,8 @@ public class Project2_Search_Thompson {
  	 * This should return the max value since it is endgame, need to modify so it works with Minimax and not negamax.
  	 * */
  	if (!foundMove) {
+ 		if (pruned)
+ 			return beta;
              if (check)
                  return 10000 + ply;
              else
@@ -641,6 +1639,7 @@ public class Project2_Search_Thompson {
  	/* fifty move draw rule */
  	if (board.fifty >= 100)
              return 0;
+ 	storeHash(bestMove, beta, depth, beta < betaStart ? Project2_TranspositionTable_Thompson.EXACT : Project2_TranspositionTable_Thompson.LOWER);
  	
  	//return minimum value found.
  	return beta;
@@ -650,6 +1649,463 @@ public class Project2_Search_Thompson {
  	 
     
   
+    /**
+     * Principal variation search.
+     * 
+     * Negamax instead of separate max/min functions: the score is always from the point of view of the side to move,
+     * so a child's score is negated and the window flipped on the way down.
+     * 
+     * Once we have searched the first move (hopefully the best, given PV, hash and history ordering) with the full window,
+     * every other move only has to be shown to be no better.  That is done with a null window (alpha, alpha + 1), which
+     * cuts off much sooner.  If a move does turn out better we have to search it again with the full window to get its score.
+     * 
+     * Uses the same transposition table as Alpha Beta, the scores stored in it are converted to dark-relative so the two
+     * can share it.
+     * 
+     * @param alpha - lower bound, side to move's point of view
+     * @param beta - upper bound, side to move's point of view
+     * @param depth - depth left to search
+     * @return score for the side to move.
+     */
+    int searchPVS(int alpha, int beta, int depth) {
+	//At the horizon, let the quiescence search play out the captures.
+	if (depth == 0 && quiescence)
+            return quiesce(alpha, beta);
+
+	++nodes;
+	if (depth == 0)
+            return evaluate();
+
+	if (checkup())
+            return 0;
+
+	pvLength[ply] = ply;
+
+	//Repetitions and the fifty move rule are draws, but not at the root since we need a move there.
+	if (ply > 0 && (board.fifty >= 100 || board.reps() > 0))
+            return 0;
+
+	if (ply >= MAX_PLY - 1)
+            return evaluate();
+
+	boolean check = board.inCheck(board.side);
+	if (check)
+            ++depth;
+
+	int hashMove = 0;
+	if (hashTable != null) {
+            long entry = probeHash();
+            if (entry != 0) {
+                int score = hashScorePVS(entry, depth, alpha, beta);
+                if (score != NO_SCORE)
+                    return score;
+                hashMove = Project2_TranspositionTable_Thompson.getMove(entry);
+            }
+	}
+
+	//Razoring and futility, see searchMaxAB().  Like the null move, only in null window nodes.
+	int staticEval = check ? 0 : evaluate();
+	boolean nullWindow = beta - alpha == 1;
+	if (razor(check, depth, nullWindow, alpha) && staticEval + razorMargin[depth] <= alpha
+                && (quiescence ? quiesce(alpha, alpha + 1) : staticEval) <= alpha) {
+            ++razorCuts;
+            return alpha;
+	}
+	boolean futile = frontierNode(check, depth, nullWindow, alpha) && staticEval + futilityMargin[depth] <= alpha;
+
+	//Null move, only in null window nodes since PV nodes need a real score.
+	if (nullWindow && nullMoveAllowed(check, depth) && staticEval >= beta) {
+            int r = nullDepth(depth);
+            played[ply] = 0;
+            board.firstMove[ply + 1] = board.firstMove[ply];
+            board.makeNullMove();
+            ply++;
+            int x = -searchPVS(-beta, -beta + 1, r);
+            board.takeBackNull();
+            ply--;
+            if (stop)
+                return 0;
+            if (x >= beta) {
+                if (!needsVerify(depth))
+                    return nullCut(beta);
+                nullDisabled = true;
+                x = searchPVS(beta - 1, beta, r);
+                nullDisabled = false;
+                if (stop)
+                    return 0;
+                if (x >= beta)
+                    return nullCut(beta);
+                ++nullVerifyFails;
+            }
+	}
+
+	board.gen(ply);
+	orderQuiets();
+	if (hashMove != 0)
+            sortHashMove(hashMove);
+	if (followPV)
+            sortPV();
+
+	boolean foundMove = false;
+	boolean pruned = false;
+	int legal = 0;
+	int alphaStart = alpha;
+	int bestMove = 0;
+	for (int i = board.firstMove[ply]; i < board.firstMove[ply + 1]; ++i) {
+            pickMove(i);
+            int m = board.moveStack[i];
+            if (beta - alpha == 1 && latePrune(i, m, check, depth, legal))
+                continue;
+            setPlayed(m);
+            board.makeLegalMove(m);
+            if (futile && futilePrune(m)) {
+                pruned = true;
+                continue;
+            }
+            ++legal;
+            ply++;
+            int x;
+            if (!foundMove)
+                x = -searchPVS(-beta, -alpha, depth - 1);
+            else {
+                int r = lateReduction(i, m, check, depth, legal);
+                x = -searchPVS(-alpha - 1, -alpha, depth - 1 - r);
+                if (r > 0 && x > alpha) {
+                    ++reductionResearches;
+                    x = -searchPVS(-alpha - 1, -alpha, depth - 1);
+                }
+                //Better than we thought, get its real score.
+                if (x > alpha && x < beta) {
+                    ++researches;
+                    x = -searchPVS(-beta, -alpha, depth - 1);
+                }
+            }
+            foundMove = true;
+            board.takeBack();
+            ply--;
+            if (stop)
+                return 0;
+
+            if (x > alpha) {
+                board.history[Project2_Move_Thompson.getFrom(m)][Project2_Move_Thompson.getTo(m)] += depth;
+                alpha = x;
+                pv[ply][ply] = m;
+                for (int j = ply + 1; j < pvLength[ply + 1]; ++j)
+                    pv[ply][j] = pv[ply + 1][j];
+                pvLength[ply] = pvLength[ply + 1];
+                bestMove = m;
+                if (alpha >= beta) {
+                    cutoff(m, i, depth, legal);
+                    storeHashPVS(m, alpha, depth, Project2_TranspositionTable_Thompson.LOWER);
+                    return alpha;
+                }
+            }
+	}
+
+	if (!foundMove) {
+            if (pruned)
+                return alpha;
+            if (check)
+                return -10000 + ply;
+            else
+                return 0;
+	}
+
+	storeHashPVS(bestMove, alpha, depth, alpha > alphaStart ? Project2_TranspositionTable_Thompson.EXACT : Project2_TranspositionTable_Thompson.UPPER);
+	return alpha;
+    }
+
+    /**
+     * Null move pruning.
+     * 
+     * Passing is almost never the best move, so if we pass and a reduced depth search still fails high the real
+     * moves would too and the node can be cut off cheaply.  That goes wrong in zugzwang, where every move makes
+     * things worse, so we don't pass:
+     * 
+     * 1.  when in check (passing would be illegal),
+     * 2.  when the side to move only has its king and pawns,
+     * 3.  twice in a row, at the root, or while following the PV,
+     * 4.  in the middle of a verification search.
+     * 
+     * With verification on, cutoffs from depth NULL_VERIFY_DEPTH and up are only taken if a normal search
+     * (null moves off) to the same reduced depth agrees.
+     * 
+     * @return true if we can try a null move here.
+     */
+    boolean nullMoveAllowed(boolean check, int depth) {
+	return nullMove && !nullDisabled && !check && !followPV && ply > 0 && played[ply - 1] != 0
+                && depth >= NULL_MIN_DEPTH && board.hasPieces(board.side);
+    }
+
+    /**
+     * Depth to search after a null move, reduced by R = 2, or 3 when there's plenty of depth left.
+     */
+    int nullDepth(int depth) {
+	int r = (depth > 6) ? 3 : 2;
+	++nullTries;
+	return Math.max(depth - 1 - r, 0);
+    }
+
+    boolean needsVerify(int depth) {
+	return nullVerify && depth >= NULL_VERIFY_DEPTH;
+    }
+
+    int nullCut(int score) {
+	++nullCuts;
+	return score;
+    }
+
+    /**
+     * Futility pruning.
+     * 
+     * At depth 1 the best a quiet move can do is roughly keep the static score, so if the static score plus
+     * a margin for positional gains is still below alpha only captures, promotions and checks can help and the
+     * other moves needn't be searched.  Depth 2 and 3 (extended futility) use bigger margins.
+     * 
+     * Not when in check, in nodes that need an exact score (PV nodes), or when alpha is a mate score.
+     * 
+     * @param bound - alpha in a max (or negamax) node, beta in a min node
+     * @return true if this node is close enough to the horizon for futility pruning.
+     */
+    boolean frontierNode(boolean check, int depth, boolean nonPV, int bound) {
+	return futility && nonPV && !check && depth <= FRONTIER_DEPTH && bound > -MATE_BOUND && bound < MATE_BOUND;
+    }
+
+    /**
+     * Razoring.  At depth 1 and 2, if the static score is far enough below alpha that no quiet move will get
+     * there, the quiescence search decides: if even the captures can't reach alpha the node fails low.
+     * 
+     * @return true if razoring can be tried here.
+     */
+    boolean razor(boolean check, int depth, boolean nonPV, int bound) {
+	return razoring && nonPV && !check && depth <= RAZOR_DEPTH && bound > -MATE_BOUND && bound < MATE_BOUND;
+    }
+
+    /**
+     * Called with the move already made in a futile node.  Quiet moves that don't give check are taken back
+     * and skipped.
+     * 
+     * @return true if the move was taken back.
+     */
+    boolean futilePrune(int m) {
+	if ((Project2_Move_Thompson.getBits(m) & (1 | 32)) != 0 || board.inCheck(board.side))
+            return false;
+	board.takeBack();
+	++futilityPrunes;
+	return true;
+    }
+
+    /**
+     * Is the move in slot i a plain quiet move?  Not a capture or promotion, and not the PV, hash, killer or countermove.
+     */
+    boolean lateQuiet(int i, int m) {
+	return (Project2_Move_Thompson.getBits(m) & (1 | 32)) == 0 && board.moveScore[i] < COUNTER_SCORE;
+    }
+
+    /**
+     * Late move reduction.
+     * 
+     * Move ordering puts the moves most likely to be best first, so a quiet move that comes late in the list is
+     * searched to a reduced depth with a null window.  If it surprises us by beating alpha it is searched again to
+     * full depth.  The reduction grows with the depth and the move number, see lmrTable.
+     * 
+     * Called after the move has been made.  Moves that give check, and every move when we are in check, aren't reduced.
+     * 
+     * @param i - slot of the move in the list
+     * @param m - the move
+     * @param check - were we in check before the move?
+     * @param depth - depth of the node
+     * @param legal - number of legal moves searched, including this one
+     * @return plies to reduce by, 0 for none.
+     */
+    int lateReduction(int i, int m, boolean check, int depth, int legal) {
+	if (!lateReductions || check || depth < 3 || legal <= LMR_MOVES || !lateQuiet(i, m) || board.inCheck(board.side))
+            return 0;
+	int r = lmrTable[Math.min(depth, 63)][Math.min(legal, 63)];
+	r = Math.min(r, depth - 2);
+	if (r > 0)
+            ++reductions;
+	return r;
+    }
+
+    /**
+     * Late move pruning.  Near the horizon, once we have searched 3 + depth * depth moves, the rest of the
+     * quiet moves are skipped without being searched at all.  Never when in check or before a legal move is found,
+     * and the callers only use it in null window nodes.
+     * 
+     * @return true if the move can be skipped.
+     */
+    boolean latePrune(int i, int m, boolean check, int depth, int legal) {
+	if (!latePruning || check || depth > LMP_DEPTH || legal == 0 || followPV || legal < 3 + depth * depth || !lateQuiet(i, m))
+            return false;
+	++latePrunes;
+	return true;
+    }
+
+    /**
+     * Converts between a side to move score and our usual dark-relative score (it works both ways).
+     */
+    int toDark(int score) {
+	return (board.side == Project2_Board_Thompson.DARK) ? score : -score;
+    }
+
+    /**
+     * hashCutoff() for searchPVS().  Turns the dark-relative entry into a score for the side to move, with mates
+     * counted from the root again.
+     * 
+     * @return the score to return from the node, or NO_SCORE if the entry doesn't settle it.
+     */
+    int hashScorePVS(long entry, int depth, int alpha, int beta) {
+	if (ply == 0 || Project2_TranspositionTable_Thompson.getDepth(entry) < depth)
+            return NO_SCORE;
+	int score = toDark(Project2_TranspositionTable_Thompson.getScore(entry));
+	int bound = Project2_TranspositionTable_Thompson.getBound(entry);
+	if (board.side == Project2_Board_Thompson.LIGHT && bound != Project2_TranspositionTable_Thompson.EXACT)
+            bound = (bound == Project2_TranspositionTable_Thompson.LOWER) ? Project2_TranspositionTable_Thompson.UPPER : Project2_TranspositionTable_Thompson.LOWER;
+	if (score > MATE_BOUND)
+            score -= ply;
+	else if (score < -MATE_BOUND)
+            score += ply;
+	if (bound == Project2_TranspositionTable_Thompson.EXACT
+                || (bound == Project2_TranspositionTable_Thompson.LOWER && score >= beta)
+                || (bound == Project2_TranspositionTable_Thompson.UPPER && score <= alpha)) {
+            ++hashCuts;
+            return score;
+	}
+	return NO_SCORE;
+    }
+
+    /**
+     * storeHash() for searchPVS(), stores a side to move score as a dark-relative one.
+     * Mates are stored as distance from this position, which for negamax means moving them away from zero by ply.
+     */
+    void storeHashPVS(int move, int score, int depth, int bound) {
+	if (hashTable == null)
+            return;
+	if (score > MATE_BOUND)
+            score += ply;
+	else if (score < -MATE_BOUND)
+            score -= ply;
+	if (board.side == Project2_Board_Thompson.LIGHT) {
+            score = -score;
+            if (bound != Project2_TranspositionTable_Thompson.EXACT)
+                bound = (bound == Project2_TranspositionTable_Thompson.LOWER) ? Project2_TranspositionTable_Thompson.UPPER : Project2_TranspositionTable_Thompson.LOWER;
+	}
+	hashTable.store(board.hash, move, score, depth, bound);
+    }
+
+    /**
+     * Quiescence search.
+     * 
+     * Stopping dead at depth 0 means we happily evaluate positions in the middle of a capture sequence (our queen takes a pawn
+     * and the recapture is just over the horizon).  Instead we keep searching captures and promotions only, until the position is quiet.
+     * 
+     * 1.  Stand pat - the side to move doesn't have to capture, so the static score is a lower bound.
+     * 2.  Delta pruning - skip captures that can't bring the score back up to alpha even with a safety margin.
+     * 3.  Captures come out of genCaps() in MVV/LVA order (most valuable victim, least valuable attacker).
+ * 4.  Captures that lose material according to see() are skipped altogether.
+     * 
+     * Unlike the Minimax/Alpha Beta functions this is written negamax style: scores are from the point of view of
+     * the side to move, so the same function works for both players.  quiesceScore() converts to and from our usual
+     * dark-relative scores.
+     * 
+     * @param alpha - lower bound, side to move's point of view
+     * @param beta - upper bound, side to move's point of view
+     * @return score for the side to move.
+     */
+    int quiesce(int alpha, int beta) {
+	++nodes;
+	++qnodes;
+	if (checkup())
+            return 0;
+
+	pvLength[ply] = ply;
+
+	int standPat = evaluate();
+	if (ply >= MAX_PLY - 1)
+            return standPat;
+	if (standPat >= beta)
+            return beta;
+	if (standPat > alpha)
+            alpha = standPat;
+
+	board.genCaps(ply);
+	if (followPV)
+            sortPV();
+
+	for (int i = board.firstMove[ply]; i < board.firstMove[ply + 1]; ++i) {
+            pickMove(i);
+            int m = board.moveStack[i];
+            //Even winning this piece for free won't get us to alpha.
+            if (standPat + captureValue(m) + DELTA_MARGIN <= alpha) {
+                ++deltaPrunes;
+                continue;
+            }
+            //genPush() gives captures that lose material (SEE < 0) a negative score.
+            if (board.moveScore[i] < 0) {
+                ++seePrunes;
+                continue;
+            }
+            board.makeLegalMove(m);
+            ply++;
+            int x = -quiesce(-beta, -alpha);
+            board.takeBack();
+            ply--;
+            if (stop)
+                return 0;
+            if (x > alpha) {
+                if (x >= beta)
+                    return beta;
+                alpha = x;
+                pv[ply][ply] = m;
+                for (int j = ply + 1; j < pvLength[ply + 1]; ++j)
+                    pv[ply][j] = pv[ply + 1][j];
+                pvLength[ply] = pvLength[ply + 1];
+            }
+	}
+	return alpha;
+    }
+
+    /**
+     * Calls quiesce() with our usual dark-relative scores.
+     * 
+     * @param alpha - dark-relative alpha
+     * @param beta - dark-relative beta
+     * @return dark-relative score
+     */
+    int quiesceScore(int alpha, int beta) {
+	if (board.side == Project2_Board_Thompson.DARK)
+            return quiesce(alpha, beta);
+	return -quiesce(-beta, -alpha);
+    }
+
+    /**
+     * Static score from the side to move's point of view.
+     */
+    int evaluate() {
+	int score = board.getScore();
+	return (board.side == Project2_Board_Thompson.DARK) ? score : -score;
+    }
+
+    /**
+     * Most material a capture or promotion can win, used for delta pruning.
+     * 
+     * @param m - packed move
+     * @return value of the captured piece plus any promotion gain.
+     */
+    int captureValue(int m) {
+	int to = Project2_Move_Thompson.getTo(m);
+	int bits = Project2_Move_Thompson.getBits(m);
+	int value = 0;
+	if ((bits & 4) != 0)
+            value = board.pieceValue[Project2_Board_Thompson.PAWN];
+	else if (board.color[to] != Project2_Board_Thompson.EMPTY)
+            value = board.pieceValue[board.piece[to]];
+	if ((bits & 32) != 0)
+            value += board.pieceValue[Project2_Move_Thompson.getPromote(m)] - board.pieceValue[Project2_Board_Thompson.PAWN];
+	return value;
+    }
+    
 /* sortPV() is called when the search function is following
    the PV (Principal Variation). It looks through the current
    ply's move list to see if the PV move is there. If so,
@@ -657,42 +2113,343 @@ public class Project2_Search_Thompson {
    by the search function. If not, followPV remains FALSE and
    search() stops calling sortPV(). */
 
-    void sortPV(TreeSet moves) {
+    void sortPV() {
 	followPV = false;
-        Iterator i = moves.iterator();
-	while (i.hasNext()) {
-		Project2_Move_Thompson m = (Project2_Move_Thompson) i.next();
-            if (m.equals(pv[0][ply])) {
+	for (int i = board.firstMove[ply]; i < board.firstMove[ply + 1]; ++i)
+            if (board.moveStack[i] == pv[0][ply]) {
                 followPV = true;
-                m.score += 10000000;
-                i.remove();
-                moves.add(m);
+                board.moveScore[i] += 10000000;
                 return;
             }
-        }
+    }
+
+    /**
+     * Move ordering for Alpha Beta and PVS.
+     * 
+     * gen() produces the whole move list at once, so the stages of the picker are bands of move scores and pickMove()
+     * hands the moves out a band at a time:
+     * 
+     * 1.  PV move (sortPV(), +10,000,000) and hash move (sortHashMove(), +5,000,000).
+     * 2.  Captures that don't lose material and promotions, MVV/LVA (gen(), 1,000,000 and up).
+     * 3.  The two killer moves for this ply, quiet moves that caused a cutoff in a sibling node.
+     * 4.  The countermove, the quiet move that last refuted the opponent's previous move.
+     * 5.  Other quiet moves by history plus the continuation history for the last two moves.
+     * 6.  Captures that lose material according to see() (gen(), negative).
+     */
+    void orderQuiets() {
+	int k1 = killers[ply][0];
+	int k2 = killers[ply][1];
+	int counter = 0;
+	int follow1[] = null;
+	int follow2[] = null;
+	//played[] is 0 after a null move.
+	if (ply > 0 && played[ply - 1] != 0) {
+            counter = counterMoves[Project2_Move_Thompson.getFrom(played[ply - 1])][Project2_Move_Thompson.getTo(played[ply - 1])];
+            follow1 = contHist[playedKey[ply - 1]];
+	}
+	if (ply > 1 && played[ply - 2] != 0)
+            follow2 = contHist[playedKey[ply - 2]];
+	for (int i = board.firstMove[ply]; i < board.firstMove[ply + 1]; ++i) {
+            int m = board.moveStack[i];
+            if ((Project2_Move_Thompson.getBits(m) & (1 | 32)) != 0)
+                continue;
+            if (m == k1)
+                board.moveScore[i] = KILLER_SCORE;
+            else if (m == k2)
+                board.moveScore[i] = KILLER_SCORE - 1;
+            else if (m == counter)
+                board.moveScore[i] = COUNTER_SCORE;
+            else {
+                int key = pieceKey(m);
+                int score = QUIET_SCORE + board.history[Project2_Move_Thompson.getFrom(m)][Project2_Move_Thompson.getTo(m)];
+                if (follow1 != null)
+                    score += follow1[key];
+                if (follow2 != null)
+                    score += follow2[key];
+                board.moveScore[i] = Math.max(0, Math.min(score, COUNTER_SCORE - 1));
+            }
+	}
+    }
+
+    /**
+     * Remembers the move about to be tried at this ply, orderQuiets() at the next two plies looks at it.
+     */
+    void setPlayed(int m) {
+	played[ply] = m;
+	playedKey[ply] = pieceKey(m);
+    }
+
+    /**
+     * Index of a move for the continuation history, the moving piece (with its color) and the square it goes to.
+     * Must be called before the move is made.
+     */
+    int pieceKey(int m) {
+	int from = Project2_Move_Thompson.getFrom(m);
+	return ((board.color[from] * 6 + board.piece[from]) << 6) | Project2_Move_Thompson.getTo(m);
+    }
+
+    /**
+     * A beta cutoff: updates the statistics and, if the move was quiet, the killers, the countermove and the
+     * continuation history.  The quiet moves searched before it at this node get a matching penalty.
+     * 
+     * @param m - move that caused the cutoff
+     * @param i - its slot in the move list
+     * @param depth - depth of the node
+     * @param legal - number of legal moves searched, including this one
+     */
+    void cutoff(int m, int i, int depth, int legal) {
+	++cutoffs;
+	if (legal == 1)
+            ++firstMoveCutoffs;
+	if ((Project2_Move_Thompson.getBits(m) & (1 | 32)) != 0)
+            return;
+	if (killers[ply][0] != m) {
+            killers[ply][1] = killers[ply][0];
+            killers[ply][0] = m;
+	}
+	if (ply > 0 && played[ply - 1] != 0)
+            counterMoves[Project2_Move_Thompson.getFrom(played[ply - 1])][Project2_Move_Thompson.getTo(played[ply - 1])] = m;
+	int bonus = Math.min(depth * depth, 400);
+	int key = pieceKey(m);
+	for (int back = 1; back <= 2 && back <= ply; ++back) {
+            if (played[ply - back] == 0)
+                continue;
+            int t[] = contHist[playedKey[ply - back]];
+            t[key] += bonus - t[key] * bonus / CONT_HIST_MAX;
+            for (int j = board.firstMove[ply]; j < i; ++j) {
+                int q = board.moveStack[j];
+                if ((Project2_Move_Thompson.getBits(q) & (1 | 32)) != 0)
+                    continue;
+                int k = pieceKey(q);
+                t[k] -= bonus + t[k] * bonus / CONT_HIST_MAX;
+            }
+	}
+    }
+
+    /**
+     * Forgets the killers, countermoves and continuation history, called by newGame().
+     */
+    void clearOrdering() {
+	for (int i = 0; i < MAX_PLY; ++i) {
+            killers[i][0] = 0;
+            killers[i][1] = 0;
+	}
+	for (int i = 0; i < 64; ++i)
+            for (int j = 0; j < 64; ++j)
+                counterMoves[i][j] = 0;
+	for (int i = 0; i < contHist.length; ++i)
+            Arrays.fill(contHist[i], 0);
+    }
+
+    /**
+     * Gives the hash table's best move a score just below the PV move so it gets searched first.
+     * 
+     * @param hashMove - packed move from the hash table.
+     */
+    void sortHashMove(int hashMove) {
+	for (int i = board.firstMove[ply]; i < board.firstMove[ply + 1]; ++i)
+            if (board.moveStack[i] == hashMove) {
+                board.moveScore[i] += 5000000;
+                return;
+            }
+    }
+
+    /**
+     * Looks the current position up in the hash table.
+     * 
+     * @return the table entry, 0 if we haven't seen the position.
+     */
+    long probeHash() {
+	++hashProbes;
+	long entry = hashTable.probe(board.hash);
+	if (entry != 0)
+            ++hashHits;
+	return entry;
+    }
+
+    /**
+     * Decides whether a hash entry lets us skip searching the node.  The entry must be at least as deep
+     * as the search we are about to do, and its bound must settle the score relative to alpha/beta.
+     * Never used at the root since we need a move there, not just a score.
+     * 
+     * @param entry - hash table entry
+     * @param depth - depth we are about to search to
+     * @param alpha - current alpha
+     * @param beta - current beta
+     * @return true if the stored score can be returned.
+     */
+    boolean hashCutoff(long entry, int depth, int alpha, int beta) {
+	if (ply == 0 || Project2_TranspositionTable_Thompson.getDepth(entry) < depth)
+            return false;
+	int score = scoreFromHash(Project2_TranspositionTable_Thompson.getScore(entry));
+	int bound = Project2_TranspositionTable_Thompson.getBound(entry);
+	if (bound == Project2_TranspositionTable_Thompson.EXACT
+                || (bound == Project2_TranspositionTable_Thompson.LOWER && score >= beta)
+                || (bound == Project2_TranspositionTable_Thompson.UPPER && score <= alpha)) {
+            ++hashCuts;
+            return true;
+	}
+	return false;
+    }
+
+    /**
+     * Stores the result of searching the current position.
+     * 
+     * @param move - best move, 0 if none.
+     * @param score - score found
+     * @param depth - depth searched
+     * @param bound - EXACT, LOWER or UPPER
+     */
+    void storeHash(int move, int score, int depth, int bound) {
+	if (hashTable != null)
+            hashTable.store(board.hash, move, scoreToHash(score), depth, bound);
+    }
+
+    /**
+     * Mate scores count plies from the root, but the same position can be reached at different plies.
+     * In the table we store them counted from the position itself instead.
+     */
+    int scoreToHash(int score) {
+	if (score > MATE_BOUND || score < -MATE_BOUND)
+            return score - ply;
+	return score;
+    }
+
+    int scoreFromHash(int score) {
+	if (score > MATE_BOUND || score < -MATE_BOUND)
+            return score + ply;
+	return score;
+    }
+
+    /**
+     * pickMove() searches the moves from i to the end of the current ply's list for the
+     * one with the highest score and swaps it into slot i.  Doing this one move at a time
+     * is cheaper than sorting the whole list since we usually get a cutoff long before the end.
+     * Ties go to the move with the lowest from/to/promote, the same order the old TreeSet used.
+     * 
+     * @param i - slot to fill.
+     */
+    void pickMove(int i) {
+	int moves[] = board.moveStack;
+	int scores[] = board.moveScore;
+	int best = i;
+	int end = board.firstMove[ply + 1];
+	for (int j = i + 1; j < end; ++j)
+            if (scores[j] > scores[best] || (scores[j] == scores[best] && (moves[j] & 0x7FFF) < (moves[best] & 0x7FFF)))
+                best = j;
+	if (best != i) {
+            int m = moves[i];
+            moves[i] = moves[best];
+            moves[best] = m;
+            int score = scores[i];
+            scores[i] = scores[best];
+            scores[best] = score;
+	}
     }
 
     
     
     /**
-     * Function usd to keep track of our time limit.
-     * Pretty simple idea, every x number of nodes, call this function to see how long we have been searching.
-     * If we exceed our time limit, throw the exception to end our search.
-     * since we use ID, we can return the last best move found.
-     * @throws StopSearchingException
+     * Function usd to keep track of our time limit, called at every node.
+     * Pretty simple idea, every 1024 nodes look at how long we have been searching, and set the stop flag
+     * if we are out of time or over the node limit.  A helper or worker thread also stops when its main searcher does.
+     * Once the flag is set every node returns straight away and think() uses the last iteration that finished.
+     * 
+     * @return true if the search has to stop.
      */
-
-    void checkup() throws Project2_StopSearchingException_Thompson {
-	/* is the engine's time up? if so, longjmp back to the
-	   beginning of think() */
-	if (System.currentTimeMillis() >= stopTime) {
-            throw new Project2_StopSearchingException_Thompson();
+    boolean checkup() {
+	if (nodes >= nextCheck) {
+            nextCheck = nodes + 1024;
+            //Helpers and workers go by the main thread's limit, a ponder hit can change it during the search.
+            if (System.currentTimeMillis() >= ((parent != null) ? parent.stopTime : stopTime))
+                stop = true;
+            //Minimax workers take their nodes from the budget they share.
+            java.util.concurrent.atomic.AtomicLong shared = (parent != null) ? parent.sharedNodes : null;
+            if (shared != null) {
+                if (shared.addAndGet(chargedNodes - nodes) <= 0)
+                    stop = true;
+                chargedNodes = nodes;
+            }
 	}
+	if (nodeLimit > 0 && nodes >= nodeLimit)
+            stop = true;
+	if (parent != null && parent.stop)
+            stop = true;
+	return stop;
     }
     
     //ply = one level in game tree
     //So maximum tree height is being limited to 32
     final static int MAX_PLY = 32;
+    
+    /**
+     * Scores beyond this are mates.
+     */
+    final static int MATE_BOUND = 9000;
+    
+    /**
+     * Returned by hashScorePVS() when the entry can't be used, outside the range of any real score.
+     */
+    final static int NO_SCORE = Integer.MIN_VALUE;
+    
+    /**
+     * Safety margin for delta pruning in the quiescence search.
+     */
+    final static int DELTA_MARGIN = 200;
+    
+    /**
+     * Move ordering bands for quiet moves, see orderQuiets().  Quiet move scores stay under COUNTER_SCORE.
+     */
+    final static int KILLER_SCORE = 900000;
+    final static int COUNTER_SCORE = 800000;
+    final static int QUIET_SCORE = 100000;
+    
+    /**
+     * Continuation history entries are kept within +/- this by the update in cutoff().
+     */
+    final static int CONT_HIST_MAX = 16384;
+    
+    /**
+     * Late move reduction table, indexed by depth and move number.
+     */
+    final static int lmrTable[][] = new int[64][64];
+    
+    static {
+        for (int d = 1; d < 64; ++d)
+            for (int n = 1; n < 64; ++n)
+                lmrTable[d][n] = (int) (0.75 + Math.log(d) * Math.log(n) / 2.25);
+    }
+    
+    /**
+     * The first LMR_MOVES legal moves are never reduced, late move pruning only happens at LMP_DEPTH and below.
+     */
+    final static int LMR_MOVES = 3;
+    final static int LMP_DEPTH = 3;
+    
+    /**
+     * Futility pruning works up to FRONTIER_DEPTH, razoring up to RAZOR_DEPTH.
+     * Default margins in centipawns, indexed by depth.
+     */
+    final static int FRONTIER_DEPTH = 3;
+    final static int RAZOR_DEPTH = 2;
+    final static int DEFAULT_FUTILITY_MARGIN[] = { 0, 200, 300, 500 };
+    final static int DEFAULT_RAZOR_MARGIN[] = { 0, 300, 500 };
+    
+    /**
+     * Null moves are tried from this depth, and verified from NULL_VERIFY_DEPTH.
+     */
+    final static int NULL_MIN_DEPTH = 3;
+    final static int NULL_VERIFY_DEPTH = 5;
+    
+    /**
+     * Default aspiration window half width in centipawns.
+     */
+    final static int DEFAULT_ASPIRATION_WINDOW = 50;
+    
+    /**
+     * Default transposition table size in megabytes.
+     */
+    final static int DEFAULT_HASH_MB = 16;
 
     /**
      * Board object
@@ -702,7 +2459,7 @@ public class Project2_Search_Thompson {
     /**
      * Principal variation array, used to keep track of previously found best paths.
      */
-    private Project2_Move_Thompson pv[][] = new Project2_Move_Thompson[MAX_PLY][MAX_PLY];
+    private int pv[][] = new int[MAX_PLY][MAX_PLY];
     private int pvLength[] = new int[MAX_PLY];
     /**
      * Boolean to indicate if we should follow pv (ie, sort nodes by pv).
@@ -720,5 +2477,168 @@ public class Project2_Search_Thompson {
      * Start and End time for our timer.
      */
     private long startTime;
-    private long stopTime;
+    private volatile long stopTime;
+    /**
+     * Should Alpha Beta run a quiescence search at the horizon?
+     */
+    private boolean quiescence = true;
+    /**
+     * Quiescence statistics for the last search.
+     */
+    private int qnodes = 0;
+    private int deltaPrunes = 0;
+    private int seePrunes = 0;
+    /**
+     * Transposition table, null if turned off.
+     */
+    private Project2_TranspositionTable_Thompson hashTable;
+    /**
+     * Hash table statistics for the last search.
+     */
+    private int hashProbes = 0;
+    private int hashHits = 0;
+    private int hashCuts = 0;
+    /**
+     * Number of PVS null window searches that had to be redone with the full window.
+     */
+    private int researches = 0;
+    /**
+     * Starting half width of the aspiration window, 0 for none.
+     */
+    private int aspirationWindow = DEFAULT_ASPIRATION_WINDOW;
+    /**
+     * Score of the last completed iteration, the centre of the next aspiration window.
+     */
+    private int lastScore = 0;
+    /**
+     * Aspiration statistics for the last search, each one is a re-search of the root.
+     */
+    private int aspirationFailLows = 0;
+    private int aspirationFailHighs = 0;
+    /**
+     * Two killer moves per ply, quiet moves that caused a beta cutoff at that ply.
+     */
+    private int killers[][] = new int[MAX_PLY][2];
+    /**
+     * Quiet move that last refuted a move, indexed by that move's from/to.
+     */
+    private int counterMoves[][] = new int[64][64];
+    /**
+     * Continuation history, indexed by pieceKey() of an earlier move and then pieceKey() of the move being scored.
+     */
+    private int contHist[][] = new int[12 * 64][12 * 64];
+    /**
+     * Move tried at each ply on the current line and its pieceKey().
+     */
+    private int played[] = new int[MAX_PLY];
+    private int playedKey[] = new int[MAX_PLY];
+    /**
+     * Beta cutoffs in Alpha Beta and PVS, and how many came from the first legal move.
+     */
+    private int cutoffs = 0;
+    private int firstMoveCutoffs = 0;
+    /**
+     * Null move settings, nullDisabled is set during a verification search.
+     */
+    private boolean nullMove = true;
+    private boolean nullVerify = true;
+    private boolean nullDisabled = false;
+    /**
+     * Null move statistics for the last search.
+     */
+    private int nullTries = 0;
+    private int nullCuts = 0;
+    private int nullVerifyFails = 0;
+    /**
+     * Late move settings and statistics for the last search.
+     */
+    private boolean lateReductions = true;
+    private boolean latePruning = true;
+    private int reductions = 0;
+    private int reductionResearches = 0;
+    private int latePrunes = 0;
+    /**
+     * Futility pruning and razoring settings and statistics for the last search.
+     */
+    private boolean futility = true;
+    private boolean razoring = true;
+    private int futilityMargin[] = DEFAULT_FUTILITY_MARGIN.clone();
+    private int razorMargin[] = DEFAULT_RAZOR_MARGIN.clone();
+    private int futilityPrunes = 0;
+    private int razorCuts = 0;
+    /**
+     * Nodes searched by the last iteration on its own, and how many times more it took than the one before.
+     */
+    private int prevIterationNodes = 0;
+    private double branchingFactor = 0;
+    /**
+     * Lazy SMP: number of threads, the helper searchers and their threads for the current search.
+     * stop is set on a helper by the main thread when it has finished.
+     */
+    private int threads = 1;
+    private Project2_Search_Thompson helpers[] = new Project2_Search_Thompson[0];
+    private Thread helperThreads[] = new Thread[0];
+    /**
+     * Stop flag, set by stop(), the time or node limit, or the main thread for its helpers and workers (parent).
+     */
+    private volatile boolean stop = false;
+    private Project2_Search_Thompson parent;
+    /**
+     * Node count at which checkup() next looks at the clock, and the node limit (0 for none).
+     */
+    private int nextCheck = 1024;
+    private long nodeLimit = 0;
+    /**
+     * Nodes the Minimax workers have left between them when there is a node limit (null when there isn't),
+     * and on a worker the nodes already taken from it.
+     */
+    private volatile java.util.concurrent.atomic.AtomicLong sharedNodes;
+    private int chargedNodes;
+    /**
+     * When stop() was called (System.nanoTime(), 0 if it wasn't) and how long think() took to return after it.
+     */
+    private volatile long stopRequested = 0;
+    /**
+     * Number of stop() calls, so ponderHit() can tell if anyone else has asked for a stop.
+     */
+    private int stopCount = 0;
+    private long stopLatency = 0;
+    /**
+     * PV of the last iteration that finished.
+     */
+    private int completedPV[] = new int[MAX_PLY];
+    private int completedLength = 0;
+    /**
+     * Ply (board.hply) and hash of the last search's root, -1 if there hasn't been one since newGame().
+     */
+    private int lastRootPly = -1;
+    private long lastRootHash;
+    /**
+     * Pondering: the thread, its copy of the board, the real board while it runs, the lock startPonder(),
+     * ponderHit() and stopPonder() take turns on, whether it still has no time limit, the hash of the position
+     * it is searching and the time manager of the search in progress (for ponderHit()).
+     */
+    private Thread ponderThread;
+    private Project2_Board_Thompson ponderBoard;
+    private Project2_Board_Thompson realBoard;
+    private final Object ponderLock = new Object();
+    private volatile boolean pondering = false;
+    private long ponderHash;
+    private Project2_TimeManager_Thompson timeManager;
+    private int ponderHits = 0;
+    /**
+     * Young Brothers Wait searcher, created the first time it is used.
+     */
+    private Project2_YBWSearch_Thompson ybw;
+    /**
+     * Minimax root splitting, the pool and a searcher with its own board for each of its threads.
+     */
+    private java.util.concurrent.ForkJoinPool minimaxPool;
+    private final ThreadLocal<Project2_Search_Thompson> minimaxWorkers = new ThreadLocal<Project2_Search_Thompson>() {
+        protected Project2_Search_Thompson initialValue() {
+            Project2_Search_Thompson worker = new Project2_Search_Thompson((Project2_TranspositionTable_Thompson) null);
+            worker.board = new Project2_Board_Thompson(board);
+            return worker;
+        }
+    };
 }
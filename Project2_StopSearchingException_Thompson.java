@@ -1,23 +0,0 @@
-//
-//  StopSearchingException.java
-//  ChessApp
-//
-//  Created by Peter Hunter on Mon Dec 31 2001.
-//  Copyright (c) 2001 Peter Hunter. All rights reserved.
-//
-
-/**
- * Simple Excetion class.
- * 
- * When we call check-up in our search, we are looking to see if have gone past our time limit.
- * If so, this exception is thrown to tell as to Stop Searching.
- * 
- * Was not modified by me from original source.
- * 
- * @author Kurtis Thompson
- * @version 2011.0423.
- * 
- */
-class Project2_StopSearchingException_Thompson extends Exception {
-
-}
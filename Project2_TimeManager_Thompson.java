@@ -0,0 +1,199 @@
+//
+//  TimeManager.java
+//  ChessApp
+//
+
+/**
+ * Decides how long think() may search for a move.
+ *
+ * There are two limits.  The hard limit is when the search is stopped no matter what, and is the only one checked
+ * inside the search.  The soft limit is checked between iterations: once it has passed no new iteration is started.
+ *
+ * Between iterations the time the next one will take is predicted from the last one and the effective branching
+ * factor, and if it can't finish before the hard limit it isn't started, since a stopped iteration is thrown away.
+ * If the best move changed in the last iteration the soft limit is pushed out (up to the hard limit) to give the
+ * search time to settle on one.
+ *
+ * fixed() gives the old behaviour of one time per move, clock() works the limits out from a game clock.
+ *
+ * @version 2011.0423
+ * @since 1.6
+ *
+ */
+final class Project2_TimeManager_Thompson {
+
+	/**
+	 * Moves left to plan for when the clock has no moves to go (sudden death).
+	 */
+	final static int DEFAULT_MOVES_TO_GO = 30;
+
+	/**
+	 * Time kept back for the GUI and making the move, in milliseconds.
+	 */
+	final static long OVERHEAD = 50;
+
+	/**
+	 * The hard limit is at most this many times the soft limit, and never more than 1/HARD_SHARE of the clock
+	 * unless this is the last move before the time control.
+	 */
+	final static int HARD_FACTOR = 4;
+	final static int HARD_SHARE = 3;
+
+	/**
+	 * The soft limit grows by half each time the best move changes, at most MAX_EXTENSIONS times.
+	 */
+	final static int MAX_EXTENSIONS = 3;
+
+	/**
+	 * Bounds on the branching factor used to predict the next iteration, the measured one is unreliable when an
+	 * iteration is mostly hash table hits.
+	 */
+	final static double MIN_BRANCHING = 1.5;
+	final static double MAX_BRANCHING = 8;
+
+	private final long soft;
+	private final long hard;
+
+	private long extendedSoft;
+	private volatile long startTime;
+	private long iterationStart;
+	private long lastIterationTime;
+	private int lastBest;
+	private int extensions;
+	private int completed;
+	private long predicted;
+
+	private Project2_TimeManager_Thompson(long soft, long hard) {
+		this.hard = Math.max(1, hard);
+		this.soft = Math.max(1, Math.min(soft, this.hard));
+	}
+
+	/**
+	 * The same time for every move, the applet's time drop-down.
+	 *
+	 * @param millis - Time for the move, both the soft and the hard limit.
+	 */
+	static Project2_TimeManager_Thompson fixed(long millis) {
+		return new Project2_TimeManager_Thompson(millis, millis);
+	}
+
+	/**
+	 * Limits from a game clock.  The soft limit is an even share of the clock over the moves to go plus most of the
+	 * increment, the hard limit a few times that, kept well inside the clock.
+	 *
+	 * @param remaining - Time left on our clock in milliseconds.
+	 * @param increment - Time added after each move in milliseconds.
+	 * @param movesToGo - Moves to the next time control, 0 for sudden death.
+	 */
+	static Project2_TimeManager_Thompson clock(long remaining, long increment, int movesToGo) {
+		long usable = Math.max(1, remaining - OVERHEAD);
+		int mtg = (movesToGo > 0) ? movesToGo : DEFAULT_MOVES_TO_GO;
+		long soft = usable / mtg + increment * 3 / 4;
+		long hard = (mtg == 1) ? usable : Math.min(soft * HARD_FACTOR, usable / HARD_SHARE);
+		return new Project2_TimeManager_Thompson(Math.min(soft, usable), Math.min(hard, usable));
+	}
+
+	/**
+	 * Called when the search starts.
+	 *
+	 * @return The start time.
+	 */
+	long start() {
+		startTime = System.currentTimeMillis();
+		iterationStart = startTime;
+		extendedSoft = soft;
+		lastIterationTime = 0;
+		lastBest = 0;
+		extensions = 0;
+		completed = 0;
+		predicted = 0;
+		return startTime;
+	}
+
+	/**
+	 * Starts the clock again from now, when a ponder hit turns the search so far (on the opponent's time)
+	 * into ours.  What has been learned about the iterations is kept.
+	 *
+	 * @return The new start time.
+	 */
+	long restart() {
+		startTime = System.currentTimeMillis();
+		return startTime;
+	}
+
+	/**
+	 * Time the search has to stop at, for checkup().
+	 */
+	long getHardStop() {
+		return startTime + hard;
+	}
+
+	/**
+	 * Called before each iteration after the first.
+	 *
+	 * @param branchingFactor - Effective branching factor of the last iteration, 0 if not known yet.
+	 * @return true if the iteration should be searched.
+	 */
+	boolean startIteration(double branchingFactor) {
+		long now = System.currentTimeMillis();
+		long elapsed = now - startTime;
+		predicted = 0;
+		if (elapsed >= extendedSoft)
+			return false;
+		double b = Math.max(MIN_BRANCHING, Math.min(MAX_BRANCHING, branchingFactor));
+		predicted = (long) (lastIterationTime * b);
+		if (completed > 1 && elapsed + predicted > hard)
+			return false;
+		iterationStart = now;
+		return true;
+	}
+
+	/**
+	 * Called instead of startIteration() before an iteration that is started regardless (pondering), so its
+	 * time is still measured.
+	 */
+	void iterationStarted() {
+		iterationStart = System.currentTimeMillis();
+	}
+
+	/**
+	 * Called when an iteration finishes.
+	 *
+	 * @param best - Its best move.
+	 */
+	void iterationDone(int best) {
+		lastIterationTime = System.currentTimeMillis() - iterationStart;
+		if (completed > 0 && best != lastBest && extensions < MAX_EXTENSIONS) {
+			extendedSoft = Math.min(hard, extendedSoft + soft / 2);
+			++extensions;
+		}
+		lastBest = best;
+		++completed;
+	}
+
+	long getSoft() {
+		return soft;
+	}
+
+	long getHard() {
+		return hard;
+	}
+
+	/**
+	 * Soft limit after any extensions.
+	 */
+	long getExtendedSoft() {
+		return extendedSoft;
+	}
+
+	/**
+	 * Predicted time of the last iteration asked about in startIteration(), 0 if the soft limit had passed.
+	 */
+	long getPredicted() {
+		return predicted;
+	}
+
+	int getExtensions() {
+		return extensions;
+	}
+}
@@ -0,0 +1,192 @@
+//
+//  TranspositionTable.java
+//  ChessApp
+//
+
+/**
+ * Transposition table.
+ *
+ * Remembers the result of searching a position so that when the same position is reached again, either through a
+ * different move order or in the next iteration of iterative deepening, we can reuse the score or at least try the
+ * best move first.
+ *
+ * The table is two long arrays, keys[] and data[], with a power-of-two number of entries grouped into buckets of 4.
+ * Each entry's data packs the best move, score, depth, bound type and the age (search number) it was written in.
+ * The key is stored XORed with the data, so an entry only matches if both longs were written by the same store().
+ * That lets several threads read and write the table without locks: a half-written entry just fails the check and
+ * looks like a miss.
+ *
+ * @version 2011.0423
+ * @since 1.6
+ *
+ */
+final class Project2_TranspositionTable_Thompson {
+
+	/**
+	 * Bound types.  0 is reserved for an empty entry.
+	 * EXACT - score is the true value, LOWER - score is at least this (beta cutoff), UPPER - score is at most this.
+	 */
+	final static int EXACT = 1;
+	final static int LOWER = 2;
+	final static int UPPER = 3;
+
+	/**
+	 * Entries per bucket.
+	 */
+	private final static int BUCKET = 4;
+
+	/**
+	 * Bytes used by one entry (key + data).
+	 */
+	private final static int ENTRY_SIZE = 16;
+
+	/**
+	 * Data layout:  bits 0-20 move, 21-36 score (+32768), 37-44 depth, 45-46 bound, 47-54 age.
+	 */
+	private final static int SCORE_SHIFT = 21;
+	private final static int DEPTH_SHIFT = 37;
+	private final static int BOUND_SHIFT = 45;
+	private final static int AGE_SHIFT = 47;
+
+	private long keys[];
+	private long data[];
+	private int mask;
+
+	/**
+	 * Incremented at the start of every search so old entries can be told apart from new ones.
+	 */
+	private volatile int age = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param mb - Size of the table in megabytes, rounded down to a power of two number of entries.
+	 */
+	Project2_TranspositionTable_Thompson(int mb) {
+		resize(mb);
+	}
+
+	/**
+	 * Reallocates the table, throwing away everything in it.
+	 *
+	 * @param mb - Size of the table in megabytes.
+	 */
+	void resize(int mb) {
+		long entries = ((long) Math.max(mb, 1) << 20) / ENTRY_SIZE;
+		int size = BUCKET;
+		while ((long) size * 2 <= entries && size < (1 << 30))
+			size *= 2;
+		keys = new long[size];
+		data = new long[size];
+		mask = (size - 1) & ~(BUCKET - 1);
+	}
+
+	/**
+	 * Empties the table.
+	 */
+	void clear() {
+		for (int i = 0; i < keys.length; ++i) {
+			keys[i] = 0;
+			data[i] = 0;
+		}
+		age = 0;
+	}
+
+	/**
+	 * Called at the start of a search, entries from earlier searches become easier to replace.
+	 */
+	void newSearch() {
+		age = (age + 1) & 0xFF;
+	}
+
+	/**
+	 * Size of the table in entries.
+	 */
+	int size() {
+		return keys.length;
+	}
+
+	/**
+	 * Looks up a position.
+	 *
+	 * @param key - Hash key of the position.
+	 * @return the entry's data, or 0 if the position isn't in the table.
+	 */
+	long probe(long key) {
+		int b = (int) key & mask;
+		for (int i = b; i < b + BUCKET; ++i) {
+			long d = data[i];
+			if ((keys[i] ^ d) == key && d != 0)
+				return d;
+		}
+		return 0;
+	}
+
+	/**
+	 * Stores a search result.
+	 *
+	 * If the position is already in its bucket that entry is overwritten (keeping the old move if we don't have one).
+	 * Otherwise the entry replaced is the one with the lowest depth, counting entries from older searches as
+	 * shallower the older they are.
+	 *
+	 * @param key - Hash key of the position.
+	 * @param move - Best move found, 0 if none.
+	 * @param score - Score, already adjusted for mate distance by the caller.
+	 * @param depth - Depth searched.
+	 * @param bound - EXACT, LOWER or UPPER.
+	 */
+	void store(long key, int move, int score, int depth, int bound) {
+		int b = (int) key & mask;
+		int replace = b;
+		int worst = Integer.MAX_VALUE;
+		int a = age;
+		for (int i = b; i < b + BUCKET; ++i) {
+			long d = data[i];
+			if (d == 0) {
+				if (worst > Integer.MIN_VALUE) {
+					replace = i;
+					worst = Integer.MIN_VALUE;
+				}
+				continue;
+			}
+			if ((keys[i] ^ d) == key) {
+				if (move == 0)
+					move = getMove(d);
+				replace = i;
+				break;
+			}
+			int value = getDepth(d) - 8 * ((a - getAge(d)) & 0xFF);
+			if (value < worst) {
+				worst = value;
+				replace = i;
+			}
+		}
+		long d = (long) move
+				| ((long) (score + 32768) << SCORE_SHIFT)
+				| ((long) Math.max(0, Math.min(depth, 255)) << DEPTH_SHIFT)
+				| ((long) bound << BOUND_SHIFT)
+				| ((long) a << AGE_SHIFT);
+		data[replace] = d;
+		keys[replace] = key ^ d;
+	}
+
+	static int getMove(long d) {
+		return (int) (d & 0x1FFFFF);
+	}
+
+	static int getScore(long d) {
+		return (int) ((d >>> SCORE_SHIFT) & 0xFFFF) - 32768;
+	}
+
+	static int getDepth(long d) {
+		return (int) ((d >>> DEPTH_SHIFT) & 0xFF);
+	}
+
+	static int getBound(long d) {
+		return (int) ((d >>> BOUND_SHIFT) & 3);
+	}
+
+	static int getAge(long d) {
+		return (int) ((d >>> AGE_SHIFT) & 0xFF);
+	}
+}
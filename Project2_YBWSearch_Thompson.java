@@ -0,0 +1,570 @@
+//
+//  YBWSearch.java
+//  ChessApp
+//
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Young Brothers Wait parallel search (SEARCH == 4).
+ *
+ * A negamax alpha beta search with a quiescence search that doesn't use the transposition table, so it needs no
+ * shared state beyond the node it is splitting.  At each node the first legal move (the eldest brother) is searched
+ * on its own, which usually raises alpha or finds the cutoff.  Only then, if there is enough depth left to be worth
+ * it, are the remaining moves (the young brothers) searched in parallel, each as a RecursiveTask on its own copy of
+ * the board.
+ *
+ * The brothers share a Split holding the node's alpha and beta.  A brother that improves alpha raises it for the
+ * other brothers: those that haven't started yet start with it, and those already running read it again after each
+ * move at the node just below the split and lower their beta to it, so they cut off as soon as they can't beat it.
+ * One that fails high marks the split as cut, which makes every brother (and everything they have split below them)
+ * give up at its next node.  Running out of time, the node limit or stop() give up the same way.
+ *
+ * Each pool thread keeps one Worker, with its killer moves, for the whole iteration, so the killers found by one
+ * brother help the next brother the thread searches.
+ *
+ * There are no null moves, reductions or hash cutoffs, so the score and the best move are the same on any number
+ * of threads, only the nodes saved or wasted by the order the brothers finish in differ.
+ *
+ * @version 2011.0423
+ * @since 1.6
+ *
+ */
+final class Project2_YBWSearch_Thompson {
+
+	/**
+	 * Nodes with less depth left than this are searched serially, splitting them costs more than it saves.
+	 */
+	final static int SPLIT_DEPTH = 3;
+
+	/**
+	 * Returned by a brother that was aborted or ran out of time.
+	 */
+	private final static int NO_SCORE = Integer.MIN_VALUE;
+
+	private final static int MAX_PLY = Project2_Search_Thompson.MAX_PLY;
+
+	/**
+	 * A node whose young brothers are being searched in parallel.
+	 */
+	private static final class Split {
+		final Split parent;
+		final int ply;
+		final int beta;
+		/**
+		 * Raised by the brothers as they find better moves, read by each brother as it starts and by the nodes
+		 * just below the split as they search, see narrow().
+		 */
+		volatile int alpha;
+		volatile boolean cut;
+		int bestMove;
+		int bestOrder = Integer.MAX_VALUE;
+
+		Split(Split parent, int ply, int alpha, int beta) {
+			this.parent = parent;
+			this.ply = ply;
+			this.alpha = alpha;
+			this.beta = beta;
+		}
+
+		/**
+		 * Has this node or any node it was split from already failed high?
+		 */
+		boolean aborted() {
+			for (Split s = this; s != null; s = s.parent)
+				if (s.cut)
+					return true;
+			return false;
+		}
+
+		/**
+		 * Records a brother's score.
+		 *
+		 * @param x - Score the brother returned.
+		 * @param a - Alpha it was searched with, a score no better than this is only a bound.
+		 * @param m - The brother's move.
+		 * @param order - Its place in the move ordering, equal scores go to the earliest move.
+		 */
+		synchronized void update(int x, int a, int m, int order) {
+			if (x <= a)
+				return;
+			if (x > alpha || (x == alpha && order < bestOrder)) {
+				alpha = Math.min(x, beta);
+				bestMove = m;
+				bestOrder = order;
+			}
+			if (x >= beta)
+				cut = true;
+		}
+	}
+
+	/**
+	 * Per thread state: the killer moves and the nodes not yet added to the total.  Kept for the whole iteration
+	 * by every task the thread runs, see worker().
+	 */
+	private static final class Worker {
+		final int killers[][] = new int[MAX_PLY][2];
+		long nodes;
+		long visits;
+		int iteration = -1;
+	}
+
+	/**
+	 * Searches one young brother on a board from the worker thread's pool.
+	 */
+	private final class Brother extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+		private final Project2_Board_Thompson parentBoard;
+		private final Split split;
+		private final int move;
+		private final int order;
+		private final int ply;
+		private final int depth;
+
+		Brother(Project2_Board_Thompson parentBoard, Split split, int move, int order, int ply, int depth) {
+			this.parentBoard = parentBoard;
+			this.split = split;
+			this.move = move;
+			this.order = order;
+			this.ply = ply;
+			this.depth = depth;
+		}
+
+		protected Integer compute() {
+			if (stopped || split.aborted()) {
+				aborts.incrementAndGet();
+				return NO_SCORE;
+			}
+			Project2_Board_Thompson b = borrowBoard(parentBoard);
+			Worker w = worker();
+			b.makeLegalMove(move);
+			int a = split.alpha;
+			int x = -search(b, w, split, ply + 1, -split.beta, -a, depth - 1);
+			flushNodes(w);
+			returnBoard(b);
+			if (gaveUp(split)) {
+				aborts.incrementAndGet();
+				return NO_SCORE;
+			}
+			split.update(x, a, move, order);
+			return x;
+		}
+	}
+
+	/**
+	 * Searches the root, so that the whole search runs on the pool's threads.
+	 */
+	private final class Root extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+		private final Project2_Board_Thompson rootBoard;
+		private final int depth;
+
+		Root(Project2_Board_Thompson rootBoard, int depth) {
+			this.rootBoard = rootBoard;
+			this.depth = depth;
+		}
+
+		protected Integer compute() {
+			Project2_Board_Thompson b = borrowBoard(rootBoard);
+			Worker w = worker();
+			int x = search(b, w, null, 0, -10000, 10000, depth);
+			flushNodes(w);
+			returnBoard(b);
+			return stopped ? NO_SCORE : x;
+		}
+	}
+
+	private final ForkJoinPool pool;
+	private final int threads;
+
+	/**
+	 * Boards already allocated on each worker thread.  A task borrows one for as long as it runs, a thread running
+	 * tasks nested inside a join() just borrows another.
+	 */
+	private final ThreadLocal<ArrayDeque<Project2_Board_Thompson>> boards = new ThreadLocal<ArrayDeque<Project2_Board_Thompson>>() {
+		protected ArrayDeque<Project2_Board_Thompson> initialValue() {
+			return new ArrayDeque<Project2_Board_Thompson>();
+		}
+	};
+
+	/**
+	 * The Worker of each pool thread.
+	 */
+	private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+		protected Worker initialValue() {
+			return new Worker();
+		}
+	};
+
+	/**
+	 * Counts the iterations, a Worker left over from an earlier one is cleared before it is used.  Written before
+	 * pool.invoke(), which makes it visible to the tasks.
+	 */
+	private int iteration;
+
+	private volatile long stopTime;
+	private volatile long nodeLimit;
+	private volatile boolean stopped;
+
+	/**
+	 * Best root move of the last completed iteration, searched first in the next one.
+	 */
+	private int rootMove;
+	private int bestMove;
+
+	/**
+	 * Statistics, totals since reset().
+	 */
+	private final AtomicLong nodes = new AtomicLong();
+	private final AtomicInteger splits = new AtomicInteger();
+	private final AtomicInteger aborts = new AtomicInteger();
+
+	/**
+	 * Constructor
+	 *
+	 * @param threads - Number of worker threads.
+	 */
+	Project2_YBWSearch_Thompson(int threads) {
+		this.threads = Math.max(1, threads);
+		pool = new ForkJoinPool(this.threads);
+	}
+
+	int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Called at the start of a search.
+	 *
+	 * @param stopTime - Time (System.currentTimeMillis()) the search must stop at.
+	 * @param nodeLimit - Nodes the search may use, 0 for no limit.
+	 */
+	void reset(long stopTime, long nodeLimit) {
+		this.stopTime = stopTime;
+		this.nodeLimit = nodeLimit;
+		stopped = false;
+		rootMove = 0;
+		bestMove = 0;
+		nodes.set(0);
+		splits.set(0);
+		aborts.set(0);
+	}
+
+	/**
+	 * Searches one iteration of iterative deepening.
+	 *
+	 * @param b - Board, not changed.
+	 * @param depth - Depth to search.
+	 * @return Score for the side to move, meaningless if isStopped() (the iteration didn't finish).
+	 */
+	int search(Project2_Board_Thompson b, int depth) {
+		bestMove = 0;
+		++iteration;
+		int x = pool.invoke(new Root(b, depth));
+		if (x == NO_SCORE) {
+			stopped = true;
+			return 0;
+		}
+		rootMove = bestMove;
+		return x;
+	}
+
+	/**
+	 * Stops the search from any thread, every task gives up at its next node.
+	 */
+	void stop() {
+		stopped = true;
+	}
+
+	boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * Best move found by the last completed iteration.
+	 */
+	int getBest() {
+		return rootMove;
+	}
+
+	long getNodes() {
+		return nodes.get();
+	}
+
+	int getSplits() {
+		return splits.get();
+	}
+
+	int getAborts() {
+		return aborts.get();
+	}
+
+	void shutdown() {
+		pool.shutdown();
+	}
+
+	private Project2_Board_Thompson borrowBoard(Project2_Board_Thompson from) {
+		ArrayDeque<Project2_Board_Thompson> free = boards.get();
+		if (free.isEmpty())
+			return new Project2_Board_Thompson(from);
+		Project2_Board_Thompson b = free.pop();
+		b.copyFrom(from);
+		return b;
+	}
+
+	private void returnBoard(Project2_Board_Thompson b) {
+		boards.get().push(b);
+	}
+
+	/**
+	 * This thread's Worker, cleared if it was last used in an earlier iteration.  A thread running tasks nested
+	 * inside a join() shares it with the task it is joining, which only means they share killers.
+	 */
+	private Worker worker() {
+		Worker w = workers.get();
+		if (w.iteration != iteration) {
+			for (int i = 0; i < MAX_PLY; ++i)
+				w.killers[i][0] = w.killers[i][1] = 0;
+			w.nodes = 0;
+			w.iteration = iteration;
+		}
+		return w;
+	}
+
+	/**
+	 * Adds the worker's nodes to the total.
+	 *
+	 * @return The new total.
+	 */
+	private long flushNodes(Worker w) {
+		long n = nodes.addAndGet(w.nodes);
+		w.nodes = 0;
+		return n;
+	}
+
+	/**
+	 * Counts the node, and every 1024 nodes adds them to the total and checks the time and the node limit (the
+	 * other threads' nodes since their last check aren't counted yet, so the limit can be overshot a little).
+	 *
+	 * @return true if the node has to give up.
+	 */
+	private boolean visit(Worker w, Split split) {
+		++w.nodes;
+		if ((++w.visits & 1023) == 0) {
+			long limit = nodeLimit;
+			long n = flushNodes(w);
+			if (System.currentTimeMillis() >= stopTime || (limit > 0 && n >= limit))
+				stopped = true;
+		}
+		return gaveUp(split);
+	}
+
+	/**
+	 * At a node just below a split, the brother's score only counts if it beats the split's alpha, which the other
+	 * brothers may have raised since it started.  Lowers beta to match: to one more than -alpha, so a brother
+	 * that only ties still gets its exact score and equal scores go to the earliest move.
+	 *
+	 * @return The node's beta, lowered if the split's alpha has gone up.
+	 */
+	private static int narrow(Split split, int ply, int beta) {
+		if (split == null || ply != split.ply + 1)
+			return beta;
+		return Math.min(beta, 1 - split.alpha);
+	}
+
+	/**
+	 * Has the search stopped, or has a split above us been cut?  Checked at every node and after every
+	 * child, a node that gives up returns 0 straight away and its parent throws the score away.
+	 */
+	private boolean gaveUp(Split split) {
+		return stopped || (split != null && split.aborted());
+	}
+
+	/**
+	 * Alpha beta, fail hard.
+	 */
+	private int search(Project2_Board_Thompson b, Worker w, Split split, int ply, int alpha, int beta, int depth) {
+		if (depth <= 0)
+			return quiesce(b, w, split, ply, alpha, beta);
+		if (visit(w, split))
+			return 0;
+		if (ply > 0 && (b.fifty >= 100 || b.reps() > 0))
+			return 0;
+		if (ply >= MAX_PLY - 1)
+			return evaluate(b);
+		beta = narrow(split, ply, beta);
+		if (alpha >= beta)
+			return beta;
+
+		boolean check = b.inCheck(b.side);
+		if (check)
+			++depth;
+
+		b.gen(ply);
+		order(b, w, ply);
+		int first = b.firstMove[ply];
+		int end = b.firstMove[ply + 1];
+		int best = 0;
+		int legal = 0;
+		for (int i = first; i < end; ++i) {
+			//The eldest brother is done, search the rest in parallel.
+			if (legal > 0 && depth >= SPLIT_DEPTH && i < end - 1) {
+				Split s = split(b, split, ply, alpha, beta, depth, i, end);
+				if (s != null) {
+					if (gaveUp(split))
+						return 0;
+					if (s.cut)
+						return beta;
+					if (s.alpha > alpha) {
+						alpha = s.alpha;
+						best = s.bestMove;
+					}
+					break;
+				}
+			}
+			pickMove(b, i, end);
+			int m = b.moveStack[i];
+			b.makeLegalMove(m);
+			++legal;
+			int x = -search(b, w, split, ply + 1, -beta, -alpha, depth - 1);
+			b.takeBack();
+			if (gaveUp(split))
+				return 0;
+			if (x > alpha) {
+				best = m;
+				if (x >= beta) {
+					cutoff(b, w, ply, m, depth);
+					return beta;
+				}
+				alpha = x;
+			}
+			beta = narrow(split, ply, beta);
+			if (alpha >= beta)
+				return beta;
+		}
+
+		if (legal == 0)
+			return check ? -10000 + ply : 0;
+		if (ply == 0)
+			bestMove = best;
+		return alpha;
+	}
+
+	/**
+	 * Searches moves i to end of the current node's list as young brothers.
+	 *
+	 * @return The split with the result, or null if none of the moves are legal.
+	 */
+	private Split split(Project2_Board_Thompson b, Split parent, int ply, int alpha, int beta, int depth, int i, int end) {
+		Split s = new Split(parent, ply, alpha, beta);
+		List<Brother> brothers = new ArrayList<Brother>();
+		for (int j = i; j < end; ++j) {
+			pickMove(b, j, end);
+			int m = b.moveStack[j];
+			brothers.add(new Brother(b, s, m, j, ply, depth));
+		}
+		if (brothers.isEmpty())
+			return null;
+		splits.incrementAndGet();
+		RecursiveTask.invokeAll(brothers);
+		return s;
+	}
+
+	/**
+	 * Captures only, like Project2_Search_Thompson.quiesce() without the pruning statistics.
+	 */
+	private int quiesce(Project2_Board_Thompson b, Worker w, Split split, int ply, int alpha, int beta) {
+		if (visit(w, split))
+			return 0;
+		int standPat = evaluate(b);
+		if (ply >= MAX_PLY - 1)
+			return standPat;
+		if (standPat >= beta)
+			return beta;
+		if (standPat > alpha)
+			alpha = standPat;
+
+		b.genCaps(ply);
+		int end = b.firstMove[ply + 1];
+		for (int i = b.firstMove[ply]; i < end; ++i) {
+			pickMove(b, i, end);
+			//Captures that lose material.
+			if (b.moveScore[i] < 0)
+				continue;
+			b.makeLegalMove(b.moveStack[i]);
+			int x = -quiesce(b, w, split, ply + 1, -beta, -alpha);
+			b.takeBack();
+			if (gaveUp(split))
+				return 0;
+			if (x > alpha) {
+				if (x >= beta)
+					return beta;
+				alpha = x;
+			}
+		}
+		return alpha;
+	}
+
+	/**
+	 * Score for the side to move.
+	 */
+	private static int evaluate(Project2_Board_Thompson b) {
+		int score = b.getScore();
+		return (b.side == Project2_Board_Thompson.DARK) ? score : -score;
+	}
+
+	/**
+	 * gen() has scored captures and history, on top of that the last iteration's best move goes first at the
+	 * root and the killers go ahead of the other quiet moves.
+	 */
+	private void order(Project2_Board_Thompson b, Worker w, int ply) {
+		int k1 = w.killers[ply][0];
+		int k2 = w.killers[ply][1];
+		for (int i = b.firstMove[ply]; i < b.firstMove[ply + 1]; ++i) {
+			int m = b.moveStack[i];
+			if (ply == 0 && m == rootMove)
+				b.moveScore[i] += 10000000;
+			else if (m == k1 || m == k2)
+				b.moveScore[i] += Project2_Search_Thompson.KILLER_SCORE;
+		}
+	}
+
+	/**
+	 * A quiet move caused a cutoff, remember it as a killer and in the board's history.
+	 */
+	private static void cutoff(Project2_Board_Thompson b, Worker w, int ply, int m, int depth) {
+		if ((Project2_Move_Thompson.getBits(m) & (1 | 32)) != 0)
+			return;
+		if (w.killers[ply][0] != m) {
+			w.killers[ply][1] = w.killers[ply][0];
+			w.killers[ply][0] = m;
+		}
+		b.history[Project2_Move_Thompson.getFrom(m)][Project2_Move_Thompson.getTo(m)] += depth * depth;
+	}
+
+	/**
+	 * Same as Project2_Search_Thompson.pickMove().
+	 */
+	private static void pickMove(Project2_Board_Thompson b, int i, int end) {
+		int moves[] = b.moveStack;
+		int scores[] = b.moveScore;
+		int best = i;
+		for (int j = i + 1; j < end; ++j)
+			if (scores[j] > scores[best] || (scores[j] == scores[best] && (moves[j] & 0x7FFF) < (moves[best] & 0x7FFF)))
+				best = j;
+		if (best != i) {
+			int m = moves[i];
+			moves[i] = moves[best];
+			moves[best] = m;
+			int score = scores[i];
+			scores[i] = scores[best];
+			scores[best] = score;
+		}
+	}
+}